@@ -0,0 +1,546 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size cache of blocks keyed by volume and block number. Block contents live in direct
+ * buffers outside of the heap, only the index and eviction state are on heap. New blocks only
+ * replace a victim chosen by the eviction policy when they have been asked for more often recently
+ * than the victim (TinyLFU) so that a scan doesn't flush the hot blocks. Blocks are spread over
+ * segments that each have their own lock, slots, eviction policy and sketch, and each segment keeps
+ * the blocks of a volume in order so that dropping a range only looks at the blocks cached in it.
+ */
+public class BlockCache {
+
+  // Largest direct buffer allocated for block contents
+  private static final int SLAB_SIZE = 1 << 30;
+  // Most segments a cache is split into
+  private static final int MAX_SEGMENTS = 64;
+  // Fewest slots worth giving a segment of its own
+  private static final int MIN_SEGMENT_SLOTS = 1024;
+
+  // Caches shared by every volume on this server by block size
+  private static final Map<Integer, BlockCache> caches = new HashMap<>();
+  private static long capacity;
+  private static Eviction eviction = Eviction.CLOCK;
+
+  private final int blockSize;
+  private final int slots;
+  private final Segment[] segments;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  public enum Eviction {
+    CLOCK, LRU
+  }
+
+  /**
+   * Sets the memory given to each block size in use on this server, 0 disables caching. Only
+   * volumes connected afterwards are affected.
+   */
+  public static synchronized void configure(long bytes, Eviction eviction) {
+    BlockCache.capacity = bytes;
+    BlockCache.eviction = eviction;
+    caches.clear();
+  }
+
+  /**
+   * The cache for volumes with this block size or null if caching is disabled.
+   */
+  public static synchronized BlockCache get(int blockSize) {
+    if (capacity < blockSize) {
+      return null;
+    }
+    return caches.computeIfAbsent(blockSize, k -> new BlockCache(capacity, blockSize, eviction));
+  }
+
+  public BlockCache(long capacity, int blockSize, Eviction eviction) {
+    this(capacity, blockSize, eviction, Integer.highestOneBit((int) Math.max(1, Math.min(MAX_SEGMENTS, capacity / blockSize / MIN_SEGMENT_SLOTS))));
+  }
+
+  /**
+   * @param segments a power of two no larger than the number of blocks that fit
+   */
+  BlockCache(long capacity, int blockSize, Eviction eviction, int segments) {
+    this.blockSize = blockSize;
+    slots = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE - 8);
+    this.segments = new Segment[segments];
+    for (int i = 0; i < segments; i++) {
+      this.segments[i] = new Segment(slots / segments + (i < slots % segments ? 1 : 0), eviction);
+    }
+  }
+
+  /**
+   * Copies part of a cached block.
+   *
+   * @return false if the block isn't cached
+   */
+  public boolean get(long volume, long block, byte[] read, int position, int blockOffset, int length) {
+    Key key = new Key(volume, block);
+    return segment(key).get(key, read, position, blockOffset, length);
+  }
+
+  /**
+   * Whether the block is cached, without counting as an access.
+   */
+  public boolean contains(long volume, long block) {
+    Key key = new Key(volume, block);
+    return segment(key).contains(key);
+  }
+
+  /**
+   * Caches consecutive whole blocks read from the volume unless the volume's write epoch has moved
+   * since the read started, in which case they may already be stale.
+   *
+   * @param prefetched the blocks were read ahead of a stream and are admitted without having been asked for
+   */
+  public void fill(long volume, long firstBlock, byte[] blocks, AtomicLong epoch, long readEpoch, boolean prefetched) {
+    for (int i = 0; i < blocks.length / blockSize; i++) {
+      Key key = new Key(volume, firstBlock + i);
+      segment(key).fill(key, blocks, i * blockSize, epoch, readEpoch, prefetched);
+    }
+  }
+
+  /**
+   * Drops the blocks from firstBlock to lastBlock inclusive.
+   */
+  public void invalidate(long volume, long firstBlock, long lastBlock) {
+    if (lastBlock - firstBlock < segments.length) {
+      for (long block = firstBlock; block <= lastBlock; block++) {
+        Key key = new Key(volume, block);
+        segment(key).invalidate(key);
+      }
+    } else {
+      for (Segment segment : segments) {
+        segment.invalidate(volume, firstBlock, lastBlock);
+      }
+    }
+  }
+
+  /**
+   * Drops every block of the volume.
+   */
+  public void invalidate(long volume) {
+    for (Segment segment : segments) {
+      segment.invalidate(volume, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+  }
+
+  private Segment segment(Key key) {
+    return segments[key.hashCode() & (segments.length - 1)];
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  public long rejections() {
+    return rejections.sum();
+  }
+
+  public long cachedBlocks() {
+    long cached = 0;
+    for (Segment segment : segments) {
+      cached += segment.cachedBlocks();
+    }
+    return cached;
+  }
+
+  @Override
+  public String toString() {
+    return "BlockCache{blockSize=" + blockSize + ", blocks=" + cachedBlocks() + "/" + slots + ", hits=" + hits() +
+            ", misses=" + misses() + ", evictions=" + evictions() + ", rejections=" + rejections() + "}";
+  }
+
+  /**
+   * The slots of the blocks whose keys hash to it.
+   */
+  private class Segment {
+    private final int slots;
+    private final int slotsPerSlab;
+    private final ByteBuffer[] slabs;
+    // Volume -> block -> slot
+    private final Map<Long, NavigableMap<Long, Integer>> index = new HashMap<>();
+    private final Key[] keys;
+    private final EvictionPolicy policy;
+    private final FrequencySketch sketch;
+    private int used;
+
+    Segment(int slots, Eviction eviction) {
+      this.slots = slots;
+      slotsPerSlab = SLAB_SIZE / blockSize;
+      slabs = new ByteBuffer[(slots + slotsPerSlab - 1) / slotsPerSlab];
+      for (int i = 0; i < slabs.length; i++) {
+        int slabSlots = Math.min(slotsPerSlab, slots - i * slotsPerSlab);
+        slabs[i] = ByteBuffer.allocateDirect(slabSlots * blockSize);
+      }
+      keys = new Key[slots];
+      policy = eviction == Eviction.LRU ? new Lru(slots) : new Clock(slots);
+      sketch = new FrequencySketch(slots);
+    }
+
+    synchronized boolean get(Key key, byte[] read, int position, int blockOffset, int length) {
+      sketch.increment(key);
+      Integer slot = slot(key);
+      if (slot == null) {
+        misses.increment();
+        return false;
+      }
+      hits.increment();
+      policy.accessed(slot);
+      ByteBuffer slab = slabs[slot / slotsPerSlab];
+      slab.position((slot % slotsPerSlab) * blockSize + blockOffset);
+      slab.get(read, position, length);
+      return true;
+    }
+
+    synchronized boolean contains(Key key) {
+      return slot(key) != null;
+    }
+
+    /**
+     * The epoch is checked under the lock, an invalidation of the block that bumped it first is
+     * seen here and one that takes the lock after us drops what we put.
+     */
+    synchronized void fill(Key key, byte[] blocks, int offset, AtomicLong epoch, long readEpoch, boolean prefetched) {
+      if (epoch.get() != readEpoch) {
+        return;
+      }
+      Integer slot = slot(key);
+      if (slot == null) {
+        slot = allocate(key, prefetched);
+        if (slot == null) {
+          return;
+        }
+        index.computeIfAbsent(key.volume, k -> new TreeMap<>()).put(key.block, slot);
+        keys[slot] = key;
+      }
+      policy.accessed(slot);
+      ByteBuffer slab = slabs[slot / slotsPerSlab];
+      slab.position((slot % slotsPerSlab) * blockSize);
+      slab.put(blocks, offset, blockSize);
+    }
+
+    private Integer slot(Key key) {
+      NavigableMap<Long, Integer> blocks = index.get(key.volume);
+      return blocks == null ? null : blocks.get(key.block);
+    }
+
+    private Integer allocate(Key key, boolean prefetched) {
+      if (used < slots) {
+        return used++;
+      }
+      if (slots == 0) {
+        return null;
+      }
+      int victim = policy.victim();
+      if (!prefetched && sketch.frequency(key) <= sketch.frequency(keys[victim])) {
+        rejections.increment();
+        return null;
+      }
+      evictions.increment();
+      unindex(keys[victim]);
+      return victim;
+    }
+
+    synchronized void invalidate(Key key) {
+      remove(key);
+    }
+
+    /**
+     * Drops the blocks of the volume from firstBlock to lastBlock inclusive.
+     */
+    synchronized void invalidate(long volume, long firstBlock, long lastBlock) {
+      NavigableMap<Long, Integer> blocks = index.get(volume);
+      if (blocks == null) {
+        return;
+      }
+      // Removing a block moves another into its slot, possibly one in the range
+      for (Long block : new ArrayList<>(blocks.subMap(firstBlock, true, lastBlock, true).keySet())) {
+        remove(new Key(volume, block));
+      }
+    }
+
+    synchronized int cachedBlocks() {
+      return used;
+    }
+
+    private Integer unindex(Key key) {
+      NavigableMap<Long, Integer> blocks = index.get(key.volume);
+      if (blocks == null) {
+        return null;
+      }
+      Integer slot = blocks.remove(key.block);
+      if (blocks.isEmpty()) {
+        index.remove(key.volume);
+      }
+      return slot;
+    }
+
+    private void remove(Key key) {
+      Integer slot = unindex(key);
+      if (slot != null) {
+        // Move the last used slot into the hole so that free slots are always at the end
+        int last = --used;
+        if (slot != last) {
+          Key moved = keys[last];
+          ByteBuffer from = slabs[last / slotsPerSlab].duplicate();
+          from.position((last % slotsPerSlab) * blockSize).limit(from.position() + blockSize);
+          ByteBuffer to = slabs[slot / slotsPerSlab];
+          to.position((slot % slotsPerSlab) * blockSize);
+          to.put(from);
+          keys[slot] = moved;
+          index.get(moved.volume).put(moved.block, slot);
+          policy.moved(last, slot);
+        }
+        keys[last] = null;
+        policy.removed(last);
+      }
+    }
+  }
+
+  private static class Key {
+    final long volume;
+    final long block;
+
+    Key(long volume, long block) {
+      this.volume = volume;
+      this.block = block;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return volume == key.volume && block == key.block;
+    }
+
+    @Override
+    public int hashCode() {
+      long h = block * 0x9E3779B97F4A7C15L + volume;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+
+  /**
+   * Picks which of the used slots to evict. Slots are only ever filled from the front and removals
+   * move the last slot into the hole.
+   */
+  private interface EvictionPolicy {
+    void accessed(int slot);
+
+    int victim();
+
+    void moved(int from, int to);
+
+    void removed(int slot);
+  }
+
+  /**
+   * Second chance: a hand sweeps the slots clearing reference bits and evicts the first slot that
+   * hasn't been touched since the hand last passed it.
+   */
+  private static class Clock implements EvictionPolicy {
+    private final boolean[] referenced;
+    private int hand;
+
+    Clock(int slots) {
+      referenced = new boolean[slots];
+    }
+
+    @Override
+    public void accessed(int slot) {
+      referenced[slot] = true;
+    }
+
+    @Override
+    public int victim() {
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % referenced.length;
+      }
+      int victim = hand;
+      hand = (hand + 1) % referenced.length;
+      return victim;
+    }
+
+    @Override
+    public void moved(int from, int to) {
+      referenced[to] = referenced[from];
+    }
+
+    @Override
+    public void removed(int slot) {
+      referenced[slot] = false;
+    }
+  }
+
+  /**
+   * Exact least recently used order kept as a doubly linked list over slot numbers.
+   */
+  private static class Lru implements EvictionPolicy {
+    private final int[] previous;
+    private final int[] next;
+    private final boolean[] linked;
+    // Least recently used at the head, most recently used at the tail
+    private int head = -1;
+    private int tail = -1;
+
+    Lru(int slots) {
+      previous = new int[slots];
+      next = new int[slots];
+      linked = new boolean[slots];
+    }
+
+    @Override
+    public void accessed(int slot) {
+      unlink(slot);
+      previous[slot] = tail;
+      next[slot] = -1;
+      if (tail == -1) {
+        head = slot;
+      } else {
+        next[tail] = slot;
+      }
+      tail = slot;
+      linked[slot] = true;
+    }
+
+    @Override
+    public int victim() {
+      return head;
+    }
+
+    @Override
+    public void moved(int from, int to) {
+      unlink(to);
+      if (!linked[from]) {
+        return;
+      }
+      previous[to] = previous[from];
+      next[to] = next[from];
+      if (previous[to] == -1) head = to; else next[previous[to]] = to;
+      if (next[to] == -1) tail = to; else previous[next[to]] = to;
+      linked[to] = true;
+      linked[from] = false;
+    }
+
+    @Override
+    public void removed(int slot) {
+      unlink(slot);
+    }
+
+    private void unlink(int slot) {
+      if (!linked[slot]) {
+        return;
+      }
+      if (previous[slot] == -1) head = next[slot]; else next[previous[slot]] = next[slot];
+      if (next[slot] == -1) tail = previous[slot]; else previous[next[slot]] = previous[slot];
+      linked[slot] = false;
+    }
+  }
+
+  /**
+   * Count-min sketch of 4 bit counters estimating how often each block has been asked for
+   * recently. Every counter is halved once enough accesses have been counted so that old
+   * popularity fades.
+   */
+  private static class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int slots) {
+      int counters = Integer.highestOneBit(Math.max(16, Math.min(slots, 1 << 28)) - 1) << 1;
+      // 16 counters per long
+      table = new long[counters >>> 4];
+      mask = table.length - 1;
+      sampleSize = (int) Math.min(10L * slots, Integer.MAX_VALUE);
+    }
+
+    void increment(Object key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int counter = counter(hash, i);
+        int index = indexOf(hash, i);
+        long shift = counter << 2;
+        if (((table[index] >>> shift) & 0xF) < 15) {
+          table[index] += 1L << shift;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        for (int i = 0; i < table.length; i++) {
+          table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(Object key) {
+      int hash = spread(key.hashCode());
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        long count = (table[indexOf(hash, i)] >>> (counter(hash, i) << 2)) & 0xF;
+        frequency = Math.min(frequency, (int) count);
+      }
+      return frequency;
+    }
+
+    private int indexOf(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & mask;
+    }
+
+    private static int counter(int hash, int i) {
+      return ((hash >>> (i << 3)) & 3) << 2 | i;
+    }
+
+    private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+  }
+}
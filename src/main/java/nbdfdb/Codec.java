@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of stored block values. A value the size of a block is stored raw and an empty value is
+ * a tombstone, anything else starts with the tag of the codec that compressed it, so an array can change
+ * codecs without rewriting the blocks it already has. Blocks that don't compress are stored raw.
+ */
+public enum Codec {
+  NONE(0),
+  // Fast enough to keep up with the network
+  LZ4(1),
+  // Smaller but several times slower to compress
+  DEFLATE(2);
+
+  private static final LZ4Compressor lz4Compressor = LZ4Factory.fastestInstance().fastCompressor();
+  private static final LZ4FastDecompressor lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+  private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(Deflater::new);
+  private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+  // Tag of values that point at content shared through the ContentStore
+  static final byte POINTER = 3;
+
+  final byte tag;
+
+  Codec(int tag) {
+    this.tag = (byte) tag;
+  }
+
+  /**
+   * The value to store for a block.
+   */
+  byte[] encode(byte[] block) {
+    if (this == NONE) {
+      return block;
+    }
+    // Anything as long as the block would read as raw
+    byte[] encoded = new byte[block.length - 1];
+    int length;
+    if (this == LZ4) {
+      try {
+        length = lz4Compressor.compress(block, 0, block.length, encoded, 1, encoded.length - 1);
+      } catch (LZ4Exception e) {
+        return block;
+      }
+    } else {
+      Deflater compressor = deflater.get();
+      compressor.reset();
+      compressor.setInput(block);
+      compressor.finish();
+      length = compressor.deflate(encoded, 1, encoded.length - 1);
+      if (!compressor.finished()) {
+        return block;
+      }
+    }
+    encoded[0] = tag;
+    return Arrays.copyOf(encoded, length + 1);
+  }
+
+  /**
+   * The block a stored value holds, tombstones are returned as they are.
+   */
+  static byte[] decode(byte[] value, int blockSize) {
+    if (value.length == blockSize || value.length == 0) {
+      return value;
+    }
+    byte[] block = new byte[blockSize];
+    if (value[0] == LZ4.tag) {
+      lz4Decompressor.decompress(value, 1, block, 0, blockSize);
+    } else if (value[0] == DEFLATE.tag) {
+      Inflater decompressor = inflater.get();
+      decompressor.reset();
+      decompressor.setInput(value, 1, value.length - 1);
+      try {
+        decompressor.inflate(block);
+      } catch (DataFormatException e) {
+        throw new IllegalStateException("Corrupt block", e);
+      }
+    } else {
+      throw new IllegalStateException("Unknown codec " + value[0]);
+    }
+    return block;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.apple.foundationdb.Database;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks every array in the database deleting block versions that nothing can read anymore so that
+ * reads and storage don't grow with the number of times a block has been written. Progress is kept
+ * in each array so a restarted server picks up where it left off. Deduplicated content released by the
+ * deleted versions is collected at the end of each pass. Only the versions that clones, named snapshots
+ * and snapshot views opened in this process read are kept, so it is off unless the server is asked to
+ * run it.
+ */
+public class Compactor implements Runnable {
+
+  private static Logger log = Logger.getLogger("NBD");
+
+  // Versions scanned per transaction
+  private static final int BATCH = 500;
+  // Pause between passes over all of the arrays
+  private static final long PASS_INTERVAL = 60_000;
+
+  private final Database database;
+  private final RateLimiter limiter;
+
+  /**
+   * @param keysPerSecond versions scanned per second across all arrays
+   */
+  public Compactor(Database database, int keysPerSecond) {
+    this.database = database;
+    limiter = RateLimiter.create(keysPerSecond);
+  }
+
+  public static void start(Database database, int keysPerSecond) {
+    Thread thread = new Thread(new Compactor(database, keysPerSecond), "compactor");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        for (String name : FDBArray.list(database)) {
+          try {
+            compact(name);
+          } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Failed to compact " + name, e);
+          }
+        }
+        // Content the passes released is collected once nothing points at it
+        pass("shared content", "blocks", ContentStore.open(database)::collect);
+        Thread.sleep(PASS_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Compaction pass failed", e);
+      }
+    }
+  }
+
+  /**
+   * Runs one pass over the array, folding its deltas into their blocks first so that the versions
+   * they replace can be compacted, then dropping zeroed ranges and the versions they hide.
+   */
+  public void compact(String name) throws InterruptedException {
+    FDBArray array = FDBArray.open(database, name);
+    pass(name, "deltas", array::fold);
+    pass(name, "zeroed ranges", array::compactZeros);
+    pass(name, "versions", array::compact);
+  }
+
+  private void pass(String name, String what, Function<Integer, CompletableFuture<FDBArray.Compaction>> step)
+          throws InterruptedException {
+    long scanned = 0;
+    long deleted = 0;
+    FDBArray.Compaction batch;
+    do {
+      try {
+        batch = step.apply(BATCH).get();
+      } catch (ExecutionException e) {
+        log.log(Level.WARNING, "Failed to compact " + what + " of " + name, e.getCause());
+        return;
+      }
+      scanned += batch.scanned;
+      deleted += batch.deleted;
+      limiter.acquire(Math.max(1, batch.scanned));
+    } while (!batch.done);
+    if (deleted > 0) {
+      log.info("Compacted " + name + ": deleted " + deleted + " of " + scanned + " " + what);
+    }
+  }
+}
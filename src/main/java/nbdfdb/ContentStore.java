@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Block contents shared by every array that deduplicates, stored once under the hash of the block
+ * with a count of the versions pointing at them. Versions hold a pointer, the codec tag POINTER
+ * followed by the hash. Content whose count has dropped to zero is collected in the background.
+ */
+class ContentStore {
+
+  private static final int HASH_LENGTH = 32;
+  private static final byte[] ONE = littleEndian(1);
+  private static final byte[] MINUS_ONE = littleEndian(-1);
+
+  // One per database, shared by its arrays
+  private static final Map<Database, ContentStore> stores = new ConcurrentHashMap<>();
+
+  private final Database database;
+  // hash -> stored value
+  private final Subspace blocks;
+  // hash -> versions pointing at it, a little endian counter
+  private final Subspace refs;
+  // hashes whose count went down since they were last collected
+  private final Subspace freed;
+
+  static ContentStore open(Database database) {
+    return stores.computeIfAbsent(database, ContentStore::new);
+  }
+
+  private ContentStore(Database database) {
+    this.database = database;
+    DirectorySubspace ds;
+    try {
+      ds = DirectoryLayer.getDefault().createOrOpen(database, singletonList("com.sampullara.fdb.content")).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    blocks = ds.get("blocks");
+    refs = ds.get("refs");
+    freed = ds.get("freed");
+  }
+
+  static boolean isPointer(byte[] value) {
+    return value.length == HASH_LENGTH + 1 && value[0] == Codec.POINTER;
+  }
+
+  /**
+   * Adds a reference to the content of the block and returns the pointer to store in its place. The
+   * value is only uploaded when nobody has stored the same content yet. Uploads are blind, so writers
+   * of the same new block both store it rather than conflicting. Only a write that relies on content
+   * already being stored conflicts on it, with a collection that deletes it before we commit.
+   */
+  CompletableFuture<byte[]> store(Transaction tx, byte[] block, byte[] value) {
+    byte[] hash = Hashing.sha256().hashBytes(block).asBytes();
+    byte[] contentKey = blocks.pack(Tuple.from(hash));
+    tx.mutate(MutationType.ADD, refs.pack(Tuple.from(hash)), ONE);
+    return tx.snapshot().get(contentKey).thenApply(existing -> {
+      if (existing == null) {
+        tx.set(contentKey, value);
+      } else {
+        tx.addReadConflictKey(contentKey);
+      }
+      byte[] pointer = new byte[HASH_LENGTH + 1];
+      pointer[0] = Codec.POINTER;
+      System.arraycopy(hash, 0, pointer, 1, HASH_LENGTH);
+      return pointer;
+    });
+  }
+
+  /**
+   * The stored value a pointer refers to.
+   */
+  CompletableFuture<byte[]> get(ReadTransaction tx, byte[] pointer) {
+    return tx.get(blocks.pack(Tuple.from(hash(pointer)))).thenApply(value -> {
+      if (value == null) {
+        throw new IllegalStateException("Missing content for block");
+      }
+      return value;
+    });
+  }
+
+  /**
+   * Drops the reference a discarded version held.
+   */
+  void release(Transaction tx, byte[] pointer) {
+    byte[] hash = hash(pointer);
+    tx.mutate(MutationType.ADD, refs.pack(Tuple.from(hash)), MINUS_ONE);
+    tx.set(freed.pack(Tuple.from(hash)), new byte[0]);
+  }
+
+  /**
+   * Deletes up to maxKeys freed contents that nothing points at anymore. Reading the counts makes
+   * the collection conflict with anyone adding a reference meanwhile.
+   */
+  CompletableFuture<FDBArray.Compaction> collect(int maxKeys) {
+    return database.runAsync(tx -> {
+      tx.options().setPriorityBatch();
+      return tx.getRange(freed.range(), maxKeys).asList().thenCompose(candidates -> {
+        List<CompletableFuture<byte[]>> counts = new ArrayList<>();
+        for (KeyValue candidate : candidates) {
+          counts.add(tx.get(refs.pack(freed.unpack(candidate.getKey()))));
+        }
+        return CompletableFuture.allOf(counts.toArray(new CompletableFuture[counts.size()])).thenApply($ -> {
+          int deleted = 0;
+          for (int i = 0; i < candidates.size(); i++) {
+            Tuple hash = freed.unpack(candidates.get(i).getKey());
+            tx.clear(candidates.get(i).getKey());
+            byte[] count = counts.get(i).join();
+            if (count == null || ByteBuffer.wrap(count).order(ByteOrder.LITTLE_ENDIAN).getLong() <= 0) {
+              tx.clear(blocks.pack(hash));
+              tx.clear(refs.pack(hash));
+              deleted++;
+            }
+          }
+          return new FDBArray.Compaction(candidates.size(), deleted, candidates.size() < maxKeys);
+        });
+      });
+    });
+  }
+
+  private static byte[] hash(byte[] pointer) {
+    return Arrays.copyOfRange(pointer, 1, pointer.length);
+  }
+
+  private static byte[] littleEndian(long value) {
+    return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+  }
+}
@@ -20,16 +20,34 @@ package nbdfdb;
 import com.apple.foundationdb.*;
 import com.apple.foundationdb.directory.DirectoryLayer;
 import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.subspace.Subspace;
 import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
@@ -44,26 +62,91 @@ public class FDBArray {
   private static final byte[] MINUS_ONE = new byte[]{0, 0, 0, 0, 0, 0, 0, -1};
   private static DirectoryLayer dl = DirectoryLayer.getDefault();
 
+  // A block version without a value has been discarded and reads as zeros
+  private static final byte[] TOMBSTONE = new byte[0];
+  // Largest write committed in a single transaction, well under the FDB limit of 10MB
+  private static final int WRITE_BATCH = 1024 * 1024;
+  // Tombstones written per transaction when trimming
+  private static final int TRIM_BATCH = 10_000;
+
+  // Versions the snapshot views handed out in this process read at by array path
+  private static final Map<List<String>, Multiset<Long>> views = new ConcurrentHashMap<>();
+
+  // On disk formats, arrays without a format version have one block per sector
+  static final int FORMAT_SECTORS = 1;
+  // Each block is a chunk of several sectors, the sector size is stored separately
+  static final int FORMAT_CHUNKS = 2;
+  // Versions are keyed by the versionstamp of the commit that wrote them instead of the clock, and
+  // snapshots and clones read as of a commit version
+  static final int FORMAT_VERSIONSTAMPS = 3;
+  // Block values may be compressed and carry the tag of their codec
+  static final int FORMAT_CODECS = 4;
+  // Block values may point at content shared through the ContentStore
+  static final int FORMAT_DEDUP = 5;
+  private static final int FORMAT_LATEST = FORMAT_DEDUP;
+
   // Metadata keys
+  private static final String FORMAT_VERSION_KEY = "format_version";
   private static final String BLOCK_SIZE_KEY = "block_size";
+  private static final String SECTOR_SIZE_KEY = "sector_size";
   private static final String PARENT_KEY = "parent";
   private static final String PARENT_TIMESTAMP_KEY = "parent_timestamp";
   private static final String DEPENDENTS = "dependents";
+  // Path of each array cloned from this one and the timestamp it was cloned at
+  private static final String CHILDREN = "children";
+  private static final String COMPACTION_CURSOR_KEY = "compaction_cursor";
+  private static final String DELTA_CURSOR_KEY = "delta_cursor";
+  // Zeroed range the last compaction of zeroed ranges stopped at and the version under it to go on from
+  private static final String ZEROS_CURSOR_KEY = "zeros_cursor";
+  private static final String ZEROS_DATA_CURSOR_KEY = "zeros_data_cursor";
+  private static final String CODEC_KEY = "codec";
+  // Bytes of blocks written and what they took once encoded, little endian counters
+  private static final String WRITTEN_BYTES_KEY = "written_bytes";
+  private static final String STORED_BYTES_KEY = "stored_bytes";
+  // Whether new blocks are deduplicated, present once the array may hold pointers to shared content
+  private static final String DEDUP_KEY = "dedup";
+  // Named snapshots and the timestamp each one reads at
+  private static final String SNAPSHOTS = "snapshots";
+  // Runs of blocks and the ancestor layer that owns them, first block -> (end block, depth)
+  private static final String LAYERS = "layers";
+  // Present once the layer index of a clone is complete
+  private static final String LAYER_INDEX_KEY = "layer_index";
+  // Layer index runs written per transaction
+  private static final int LAYER_BATCH = 10_000;
   private static final String BLOCKS = "blocks";
+  // Present once the used block map has a bit for every block with a version or a zeroed range, the
+  // maps of arrays written by earlier servers could lose blocks and are rebuilt before they are relied on
+  private static final String BLOCKS_COMPLETE_KEY = "blocks_complete";
 
   // Location in the database
   private final DirectorySubspace metadata;
   private final DirectorySubspace data;
+  private final DirectorySubspace zeros;
+  // Writes of part of a block, (block, version) -> (offset, bytes)
+  private final DirectorySubspace deltas;
   private final Database database;
   private final int blockSize;
-  private final FDBArray parentArray;
+  private final int sectorSize;
+  private final int formatVersion;
+  // Dropped once the array has been flattened
+  private volatile FDBArray parentArray;
   private final DirectorySubspace ds;
   private final Long snapshot;
   private final FDBBitSet usedBlocks;
+  private volatile boolean blocksComplete;
+  private final Subspace layers;
+  private volatile boolean layerIndexed;
+  private volatile boolean deltaWrites;
+  private volatile Codec codec;
+  private volatile boolean dedup;
+  private volatile boolean sharesContent;
+  private volatile Metrics metrics;
 
   // Keys
   private byte[] dependents;
 
+  private boolean released;
+
   // Used for copies
   private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
     @Override
@@ -77,17 +160,54 @@ public class FDBArray {
     return new FDBArray(database, ds);
   }
 
+  /**
+   * A read only view of the array as of the timestamp. Like snapshot(long) it holds on to the versions it
+   * reads until it is released, but only against compaction and trims run by this process. Use a named
+   * snapshot to keep them from every server.
+   */
   public static FDBArray open(Database database, String name, long timestamp) {
     DirectorySubspace ds = get(dl.open(database, asList("com.sampullara.fdb.array", name)));
+    return view(database, ds, timestamp);
+  }
+
+  private static FDBArray view(Database database, DirectorySubspace ds, long timestamp) {
+    views.computeIfAbsent(ds.getPath(), k -> ConcurrentHashMultiset.create()).add(timestamp);
     return new FDBArray(database, ds, timestamp);
   }
 
+  public static List<String> list(Database database) {
+    return get(dl.list(database, singletonList("com.sampullara.fdb.array")));
+  }
+
+  /**
+   * Creates an array that stores one value per sector.
+   */
   public static FDBArray create(Database database, String name, int blockSize) {
     DirectorySubspace ds = get(dl.create(database, asList("com.sampullara.fdb.array", name)));
-    return create(database, ds, blockSize, null, 0);
+    return create(database, ds, blockSize, blockSize, FORMAT_LATEST, Codec.NONE, null, 0);
+  }
+
+  /**
+   * Creates an array that stores one value per chunk of sectors so that reads and writes touch fewer keys.
+   * Writes smaller than a chunk read and rewrite the whole chunk.
+   */
+  public static FDBArray create(Database database, String name, int chunkSize, int sectorSize) {
+    return create(database, name, chunkSize, sectorSize, Codec.NONE);
+  }
+
+  /**
+   * Creates a chunked array whose blocks are compressed with the codec.
+   */
+  public static FDBArray create(Database database, String name, int chunkSize, int sectorSize, Codec codec) {
+    if (chunkSize < sectorSize || chunkSize % sectorSize != 0) {
+      throw new IllegalArgumentException("Chunk size " + chunkSize + " must be a multiple of the sector size " + sectorSize);
+    }
+    DirectorySubspace ds = get(dl.create(database, asList("com.sampullara.fdb.array", name)));
+    return create(database, ds, chunkSize, sectorSize, FORMAT_LATEST, codec, null, 0);
   }
 
-  protected static FDBArray create(Database database, DirectorySubspace ds, int blockSize, DirectorySubspace parent, long timestamp) {
+  protected static FDBArray create(Database database, DirectorySubspace ds, int blockSize, int sectorSize, int formatVersion,
+                                   Codec codec, DirectorySubspace parent, long timestamp) {
     DirectorySubspace metadata = get(ds.create(database, singletonList("metadata")));
     if (parent != null) {
       List<String> parentPath = parent.getPath();
@@ -99,6 +219,15 @@ public class FDBArray {
     }
     database.run((Function<Transaction, Void>) tx -> {
       tx.set(metadata.get(BLOCK_SIZE_KEY).pack(), Ints.toByteArray(blockSize));
+      // Clones read their parent at a version in its own version space so they keep its format
+      if (formatVersion != FORMAT_SECTORS) {
+        tx.set(metadata.get(FORMAT_VERSION_KEY).pack(), Ints.toByteArray(formatVersion));
+        tx.set(metadata.get(SECTOR_SIZE_KEY).pack(), Ints.toByteArray(sectorSize));
+      }
+      if (codec != Codec.NONE) {
+        tx.set(metadata.get(CODEC_KEY).pack(), Tuple.from(codec.name()).pack());
+      }
+      tx.set(metadata.get(BLOCKS_COMPLETE_KEY).pack(), new byte[0]);
       return null;
     });
     return new FDBArray(database, ds);
@@ -118,20 +247,31 @@ public class FDBArray {
     this.database = database;
     this.metadata = get(ds.createOrOpen(database, singletonList("metadata")));
     this.data = get(ds.createOrOpen(database, singletonList("data")));
-    Integer currentBlocksize = database.run(tx -> {
-      byte[] key = metadata.get(BLOCK_SIZE_KEY).pack();
-      byte[] currentBlockSize = get(tx.get(key));
+    this.zeros = get(ds.createOrOpen(database, singletonList("zeros")));
+    this.deltas = get(ds.createOrOpen(database, singletonList("deltas")));
+    int[] sizes = database.run(tx -> {
+      byte[] currentBlockSize = get(tx.get(metadata.get(BLOCK_SIZE_KEY).pack()));
       if (currentBlockSize == null) {
         return null;
-      } else {
-        return Ints.fromByteArray(currentBlockSize);
       }
+      byte[] currentFormat = get(tx.get(metadata.get(FORMAT_VERSION_KEY).pack()));
+      byte[] currentSectorSize = get(tx.get(metadata.get(SECTOR_SIZE_KEY).pack()));
+      int currentBlocksize = Ints.fromByteArray(currentBlockSize);
+      return new int[]{
+              currentBlocksize,
+              currentSectorSize == null ? currentBlocksize : Ints.fromByteArray(currentSectorSize),
+              currentFormat == null ? FORMAT_SECTORS : Ints.fromByteArray(currentFormat)
+      };
     });
-    if (currentBlocksize == null) {
+    if (sizes == null) {
       throw new IllegalArgumentException("Block size for array not configured");
-    } else {
-      blockSize = currentBlocksize;
     }
+    if (sizes[2] > FORMAT_LATEST) {
+      throw new IllegalStateException("Array format " + sizes[2] + " is newer than this server supports");
+    }
+    blockSize = sizes[0];
+    sectorSize = sizes[1];
+    formatVersion = sizes[2];
     parentArray = database.run(tx -> {
       byte[] parentPathValue = get(tx.get(metadata.get(PARENT_KEY).pack()));
       byte[] parentTimestampBytes = get(tx.get(metadata.get(PARENT_TIMESTAMP_KEY).pack()));
@@ -145,207 +285,1562 @@ public class FDBArray {
     });
     dependents = metadata.get(DEPENDENTS).pack();
     usedBlocks = new FDBBitSet(database, metadata.get(BLOCKS), 512);
+    blocksComplete = database.run(tx -> get(tx.get(metadata.get(BLOCKS_COMPLETE_KEY).pack()))) != null;
+    layers = metadata.get(LAYERS);
+    layerIndexed = parentArray != null && database.run(tx -> get(tx.get(metadata.get(LAYER_INDEX_KEY).pack()))) != null;
+    // An index built from maps that may have missed blocks is not used, every layer is scanned instead
+    for (FDBArray ancestor = parentArray; ancestor != null && layerIndexed; ancestor = ancestor.parentArray) {
+      layerIndexed = ancestor.blocksComplete;
+    }
+    byte[] codecName = database.run(tx -> get(tx.get(metadata.get(CODEC_KEY).pack())));
+    codec = codecName == null ? Codec.NONE : Codec.valueOf(Tuple.fromBytes(codecName).getString(0));
+    byte[] dedupValue = database.run(tx -> get(tx.get(metadata.get(DEDUP_KEY).pack())));
+    sharesContent = dedupValue != null;
+    dedup = sharesContent && dedupValue[0] == 1;
   }
 
   protected FDBArray(Database database, DirectorySubspace ds) {
     this(database, ds, null);
   }
 
+  /**
+   * Writes that are larger than WRITE_BATCH are split on block boundaries into several transactions
+   * that commit in parallel. The returned future completes when all of them have.
+   *
+   * @param write
+   * @param offset
+   * @return
+   */
   public CompletableFuture<Void> write(byte[] write, long offset) {
     if (snapshot != null) {
       throw new IllegalStateException("FDBArray is read only");
     }
-    return database.runAsync(tx -> {
-      // Use a single buffer for all full blocksize writes
-      byte[] bytes = buffer.get();
-
-      // Calculate the block locations
-      int length = write.length;
-      long firstBlock = offset / blockSize;
-      long lastBlock = (offset + length) / blockSize;
-      int blockOffset = (int) (offset % blockSize);
-      int shift = blockSize - blockOffset;
-
-      // Track where we have written so we can estimate usage later
-      usedBlocks.set(firstBlock, lastBlock);
-
-      // Special case first block and last block
-      byte[] firstBlockKey = data.get(firstBlock).get(System.currentTimeMillis()).pack();
-      if (blockOffset > 0 || (blockOffset == 0 && length < blockSize)) {
-        // Only need to do this if the first block is partial
-        byte[] readBytes = new byte[blockSize];
-        read(tx, firstBlock * blockSize, readBytes, Long.MAX_VALUE, null);
-        int writeLength = Math.min(length, shift);
-        System.arraycopy(write, 0, readBytes, blockOffset, writeLength);
-        tx.set(firstBlockKey, readBytes);
+    if (write.length == 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (write.length <= WRITE_BATCH) {
+      return runAsync(tx -> write(tx, write, 0, write.length, offset, true, new Written()));
+    }
+    long batchBlocks = Math.max(1, WRITE_BATCH / blockSize);
+    List<CompletableFuture<Void>> batches = new ArrayList<>();
+    int start = 0;
+    while (start < write.length) {
+      long batchOffset = offset + start;
+      int batchStart = start;
+      int end = (int) Math.min(write.length, (batchOffset / blockSize + batchBlocks) * blockSize - offset);
+      // Marking blocks used reads nothing so the batches don't conflict with each other
+      batches.add(runAsync(tx -> write(tx, write, batchStart, end - batchStart, batchOffset, true, new Written())));
+      start = end;
+    }
+    return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]));
+  }
+
+  /**
+   * Runs a transaction that changes the array, counting its retries when metrics are kept.
+   */
+  <T> CompletableFuture<T> runAsync(Function<? super Transaction, CompletableFuture<T>> retryable) {
+    Metrics current = metrics;
+    return current == null ? database.runAsync(retryable) : current.run(database, retryable);
+  }
+
+  /**
+   * Where retries of writes and the layers reads touch are recorded.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Blocks set by earlier writes in a transaction that applies several, the user version that
+   * orders the next versionstamped key after theirs, the zero blocks that were dropped rather
+   * than stored, and whether earlier versions are retained, looked up once by the first zero block.
+   */
+  private static class Written {
+    final Map<Long, byte[]> blocks = new HashMap<>();
+    final MutableRoaringBitmap dropped = new MutableRoaringBitmap();
+    int userVersion;
+    CompletableFuture<Boolean> retained;
+  }
+
+  /**
+   * Applies several writes in order within one transaction. Later writes read the blocks
+   * earlier ones wrote so they may share partial blocks.
+   */
+  CompletableFuture<Void> write(Transaction tx, List<byte[]> writes, long[] offsets) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    MutableRoaringBitmap used = new MutableRoaringBitmap();
+    Written blocks = new Written();
+    CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+    for (int i = 0; i < writes.size(); i++) {
+      byte[] write = writes.get(i);
+      long offset = offsets[i];
+      if (write.length > 0) {
+        // Each write starts once the one before has set its blocks
+        written = written.thenCompose($ -> write(tx, write, 0, write.length, offset, false, blocks));
+        used.add(offset / blockSize, (offset + write.length - 1) / blockSize + 1);
+      }
+    }
+    return written.thenCompose($ -> {
+      used.andNot(blocks.dropped);
+      return usedBlocks.update(tx, used, blocks.dropped);
+    });
+  }
+
+  /**
+   * Writes length bytes of write starting at start to offset. Only the first and last block may be partial
+   * and are read and merged with the bytes already there, or stored as deltas.
+   */
+  private CompletableFuture<Void> write(Transaction tx, byte[] write, int start, int length, long offset, boolean markUsed,
+                                        Written written) {
+    // Use a single buffer for all full blocksize writes
+    byte[] bytes = buffer.get();
+
+    // Calculate the block locations
+    long firstBlock = offset / blockSize;
+    long lastBlock = (offset + length - 1) / blockSize;
+    int blockOffset = (int) (offset % blockSize);
+    int shift = blockSize - blockOffset;
+
+    // Special case first block and last block
+    List<CompletableFuture<Void>> blocks = new ArrayList<>();
+    if (blockOffset > 0 || (blockOffset == 0 && length < blockSize)) {
+      // Only need to do this if the first block is partial
+      blocks.add(writePartial(tx, firstBlock, blockOffset, write, start, Math.min(length, shift), written));
+    } else {
+      // In this case copy the full first block blindly
+      System.arraycopy(write, start, bytes, 0, blockSize);
+      blocks.add(setBlock(tx, firstBlock, bytes, written));
+    }
+    // If there is more than one block
+    if (lastBlock > firstBlock) {
+      // For the blocks in the middle we can just blast values in without looking at the current bytes
+      for (long i = firstBlock + 1; i < lastBlock; i++) {
+        int writeBlock = (int) (i - firstBlock);
+        int position = (writeBlock - 1) * blockSize + shift;
+        System.arraycopy(write, start + position, bytes, 0, blockSize);
+        blocks.add(setBlock(tx, i, bytes, written));
+      }
+      int position = (int) ((lastBlock - firstBlock - 1) * blockSize + shift);
+      int lastBlockLength = length - position;
+      // If the last block is a complete block we don't need to read
+      if (lastBlockLength == blockSize) {
+        System.arraycopy(write, start + position, bytes, 0, blockSize);
+        blocks.add(setBlock(tx, lastBlock, bytes, written));
       } else {
-        // In this case copy the full first block blindly
-        System.arraycopy(write, 0, bytes, 0, blockSize);
-        tx.set(firstBlockKey, bytes);
-      }
-      // If there is more than one block
-      if (lastBlock > firstBlock) {
-        // For the blocks in the middle we can just blast values in without looking at the current bytes
-        for (long i = firstBlock + 1; i < lastBlock; i++) {
-          byte[] key = data.get(i).get(System.currentTimeMillis()).pack();
-          int writeBlock = (int) (i - firstBlock);
-          int position = (writeBlock - 1) * blockSize + shift;
-          System.arraycopy(write, position, bytes, 0, blockSize);
-          tx.set(key, bytes);
-        }
-        int position = (int) ((lastBlock - firstBlock - 1) * blockSize + shift);
-        int lastBlockLength = length - position;
-        byte[] lastBlockKey = data.get(lastBlock).get(System.currentTimeMillis()).pack();
-        // If the last block is a complete block we don't need to read
-        if (lastBlockLength == blockSize) {
-          System.arraycopy(write, position, bytes, 0, blockSize);
-          tx.set(lastBlockKey, bytes);
-        } else {
-          byte[] readBytes = new byte[blockSize];
-          read(tx, lastBlock * blockSize, readBytes, Long.MAX_VALUE, null);
-          System.arraycopy(write, position, readBytes, 0, lastBlockLength);
-          tx.set(lastBlockKey, readBytes);
-        }
+        blocks.add(writePartial(tx, lastBlock, 0, write, start + position, lastBlockLength, written));
       }
+    }
+    CompletableFuture<Void> set = CompletableFuture.allOf(blocks.toArray(new CompletableFuture[blocks.size()]));
+    if (!markUsed) {
+      return set;
+    }
+    // Track where we have written so we can estimate usage later, blocks of zeros that were dropped don't count
+    return set.thenCompose($ -> {
+      MutableRoaringBitmap used = new MutableRoaringBitmap();
+      used.add(firstBlock, lastBlock + 1);
+      used.andNot(written.dropped);
+      return usedBlocks.update(tx, used, written.dropped);
+    });
+  }
+
+  /**
+   * Writes part of a block. With delta writes it is stored as it is and merged on read, so there
+   * is nothing to read and nothing to conflict with. Otherwise the block is read, or taken from an
+   * earlier write in the same transaction since versionstamped versions can't be read back before
+   * the commit, and written back whole.
+   */
+  private CompletableFuture<Void> writePartial(Transaction tx, long block, int blockOffset, byte[] write, int start, int length,
+                                               Written written) {
+    byte[] pending = written.blocks.get(block);
+    if (deltaWrites && pending == null) {
+      setVersion(tx, deltas, block, Tuple.from(blockOffset, Arrays.copyOfRange(write, start, start + length)).pack(),
+              userVersion(written));
       return CompletableFuture.completedFuture(null);
+    }
+    byte[] readBytes = new byte[blockSize];
+    CompletableFuture<Void> current;
+    if (pending != null) {
+      System.arraycopy(pending, 0, readBytes, 0, blockSize);
+      current = CompletableFuture.completedFuture(null);
+    } else {
+      current = read(tx, block * blockSize, readBytes, 0, blockSize, Long.MAX_VALUE);
+    }
+    return current.thenCompose($ -> {
+      System.arraycopy(write, start, readBytes, blockOffset, length);
+      return setBlock(tx, block, readBytes, written);
     });
   }
 
-  public CompletableFuture<Long> usage() {
-    return usedBlocks.count().thenApply(usedBlocks -> usedBlocks * blockSize);
+  /**
+   * Completes once the version is set, which waits for the content lookup when deduplicating. Its
+   * place among the versions the transaction writes is taken before then. A block of zeros is stored
+   * as a tombstone, or when nothing could read its earlier versions they are cleared instead and
+   * nothing is stored at all.
+   */
+  private CompletableFuture<Void> setBlock(Transaction tx, long block, byte[] bytes, Written written) {
+    int userVersion = userVersion(written);
+    written.blocks.put(block, bytes.clone());
+    if (isZero(bytes, 0, blockSize)) {
+      if (written.retained == null) {
+        written.retained = parentArray == null ? retained(tx) : CompletableFuture.completedFuture(true);
+      }
+      return written.retained.thenAccept(retained -> {
+        if (retained) {
+          setVersion(tx, data, block, TOMBSTONE, userVersion);
+        } else {
+          tx.clear(data.get(block).range());
+          tx.clear(deltas.get(block).range());
+          written.dropped.add((int) block);
+        }
+      });
+    }
+    written.dropped.remove((int) block);
+    return storeValue(tx, bytes).thenAccept(value -> setVersion(tx, data, block, value, userVersion));
+  }
+
+  private static int userVersion(Written written) {
+    return written.userVersion++;
   }
 
   /**
-   * Read latest blocks.
-   *
-   * @param read
-   * @param offset
-   * @return
+   * Size of the values the array is stored in, a chunk of several sectors in the chunked format.
    */
-  public CompletableFuture<Void> read(byte[] read, long offset) {
-    return read(read, offset, Long.MAX_VALUE);
+  public int getBlockSize() {
+    return blockSize;
   }
 
   /**
-   * Read blocks as of a particular timestamp.
-   *
-   * @param read
-   * @param offset
-   * @param timestamp
-   * @return
+   * Smallest unit the array can be addressed in.
    */
-  public CompletableFuture<Void> read(byte[] read, long offset, long timestamp) {
-    return database.runAsync(tx -> {
-      read(tx, offset, read, timestamp, null);
-      return CompletableFuture.completedFuture(null);
+  public int getSectorSize() {
+    return sectorSize;
+  }
+
+  public int getFormatVersion() {
+    return formatVersion;
+  }
+
+  public Codec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Compresses blocks written from now on with the codec, the blocks already stored keep theirs.
+   */
+  public void setCodec(Codec codec) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    if (codec != Codec.NONE && formatVersion < FORMAT_CODECS) {
+      throw new IllegalStateException("Array format " + formatVersion + " can't be compressed");
+    }
+    database.run(tx -> {
+      tx.set(metadata.get(CODEC_KEY).pack(), Tuple.from(codec.name()).pack());
+      return null;
+    });
+    this.codec = codec;
+  }
+
+  /**
+   * Estimated bytes the used blocks take in the database, assuming they compressed as well as
+   * every block written to the array so far.
+   */
+  public CompletableFuture<Long> storedUsage() {
+    CompletableFuture<double[]> counts = database.readAsync(tx -> tx.get(metadata.get(WRITTEN_BYTES_KEY).pack())
+            .thenCombine(tx.get(metadata.get(STORED_BYTES_KEY).pack()), (written, stored) ->
+                    new double[]{counter(written), counter(stored)}));
+    return usage().thenCombine(counts, (usage, bytes) -> bytes[0] == 0 ? usage : (long) (usage * bytes[1] / bytes[0]));
+  }
+
+  public boolean getDedup() {
+    return dedup;
+  }
+
+  /**
+   * Stores blocks written from now on once for every array that writes the same content, the versions
+   * only hold a pointer to it. Blocks already stored are left as they are.
+   */
+  public void setDedup(boolean dedup) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    if (dedup && formatVersion < FORMAT_DEDUP) {
+      throw new IllegalStateException("Array format " + formatVersion + " can't be deduplicated");
+    }
+    if (!dedup && !sharesContent) {
+      return;
+    }
+    // Turning it off keeps the key since the pointers already written still have to be released
+    database.run(tx -> {
+      tx.set(metadata.get(DEDUP_KEY).pack(), new byte[]{(byte) (dedup ? 1 : 0)});
+      return null;
     });
+    sharesContent = true;
+    this.dedup = dedup;
+  }
+
+  private static long counter(byte[] value) {
+    return value == null ? 0 : ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
   }
 
-  static class BlocksRead {
-    private final int total;
-    private Set<Long> blocksRead;
+  /**
+   * The value to store for a block, counting how well it compressed.
+   */
+  private byte[] encode(Transaction tx, byte[] block) {
+    byte[] value = codec.encode(block);
+    tx.mutate(MutationType.ADD, metadata.get(WRITTEN_BYTES_KEY).pack(), littleEndian(block.length));
+    tx.mutate(MutationType.ADD, metadata.get(STORED_BYTES_KEY).pack(), littleEndian(value.length));
+    return value;
+  }
 
-    BlocksRead(int total) {
-      this.total = total;
-      blocksRead = new HashSet<>(total);
+  /**
+   * The value to store for a block, a pointer to its content when deduplicating. The block may be
+   * reused once this returns.
+   */
+  private CompletableFuture<byte[]> storeValue(Transaction tx, byte[] block) {
+    byte[] value = encode(tx, block);
+    if (!dedup) {
+      return CompletableFuture.completedFuture(value);
     }
+    return ContentStore.open(database).store(tx, block, value == block ? block.clone() : value);
+  }
 
-    boolean done() {
-      return blocksRead.size() == total;
+  /**
+   * The block a stored value holds, fetching its content when the value is a pointer.
+   */
+  private CompletableFuture<byte[]> loadValue(ReadTransaction tx, byte[] value) {
+    if (isPointer(value)) {
+      return ContentStore.open(database).get(tx, value).thenApply(content -> Codec.decode(content, blockSize));
     }
+    return CompletableFuture.completedFuture(Codec.decode(value, blockSize));
+  }
+
+  private boolean isPointer(byte[] value) {
+    return formatVersion >= FORMAT_DEDUP && ContentStore.isPointer(value);
+  }
 
-    boolean read(long block) {
-      return blocksRead.add(block);
+  private static byte[] littleEndian(long value) {
+    return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+  }
+
+  /**
+   * Stores writes of part of a block as deltas that reads merge and compaction folds into the block,
+   * instead of reading and rewriting it, so they need no read and don't conflict with each other. Only
+   * arrays with versionstamps can have deltas since servers that predate them would not read them.
+   */
+  public void setDeltaWrites(boolean deltaWrites) {
+    if (deltaWrites && !hasVersionstamps()) {
+      throw new IllegalStateException("Delta writes need an array with versionstamps");
     }
+    this.deltaWrites = deltaWrites;
   }
 
-  private void read(ReadTransaction tx, long offset, byte[] read, long readTimestamp, BlocksRead blocksRead) {
-    long snapshotTimestamp = snapshot == null ? readTimestamp : Math.min(readTimestamp, snapshot);
-    long firstBlock = offset / blockSize;
-    int blockOffset = (int) (offset % blockSize);
-    int length = read.length;
-    long lastBlock = (offset + length) / blockSize;
-    long currentBlockId = -1;
-    byte[] currentValue = null;
-    if (parentArray != null && blocksRead == null) {
-      blocksRead = new BlocksRead((int) (lastBlock - firstBlock + 1));
+  /**
+   * Whether snapshot timestamps of this array are FDB commit versions rather than milliseconds.
+   */
+  public boolean hasVersionstamps() {
+    return formatVersion >= FORMAT_VERSIONSTAMPS;
+  }
+
+  /**
+   * The timestamp a snapshot taken now reads at. Every write that has been acknowledged is visible at it.
+   */
+  public long currentVersion() {
+    return hasVersionstamps() ? get(database.readAsync(ReadTransaction::getReadVersion)) : System.currentTimeMillis();
+  }
+
+  /**
+   * Writes a new version of the block. With versionstamps the key gets the version of the commit, so
+   * versions are ordered by commit without consulting a clock, but they can't be read back before then.
+   */
+  private void setVersion(Transaction tx, Subspace versions, long block, byte[] value) {
+    setVersion(tx, versions, block, value, 0);
+  }
+
+  /**
+   * Keys set in the same transaction are ordered by their user versions.
+   */
+  private void setVersion(Transaction tx, Subspace versions, long block, byte[] value, int userVersion) {
+    if (hasVersionstamps()) {
+      tx.mutate(MutationType.SET_VERSIONSTAMPED_KEY, versions.packWithVersionstamp(Tuple.from(block, Versionstamp.incomplete(userVersion))), value);
+    } else {
+      tx.set(versions.get(block).get(System.currentTimeMillis()).pack(), value);
     }
-    for (KeyValue keyValue : tx.getRange(data.get(firstBlock).pack(), data.get(lastBlock + 1).pack())) {
-      Tuple keyTuple = data.unpack(keyValue.getKey());
-      long blockId = keyTuple.getLong(0);
-      if (blockId != currentBlockId && currentBlockId != -1) {
-        // Only copy blocks that we are going to use
-        copy(read, firstBlock, blockOffset, lastBlock, currentValue, currentBlockId, blocksRead);
-        currentValue = null;
-      }
-      // Advance the current block id
-      currentBlockId = blockId;
-      // Update the current value with the latest value not written after the snapshot timestamp
-      long timestamp = keyTuple.getLong(1);
-      if (timestamp <= snapshotTimestamp) {
-        currentValue = keyValue.getValue();
-      }
-    }
-    copy(read, firstBlock, blockOffset, lastBlock, currentValue, currentBlockId, blocksRead);
-    if (parentArray != null && !blocksRead.done()) {
-      // This is currently less efficient than I would like. Basically you should do the other reads
-      // and only call the parent when there are gaps. Instead, we are calling all parents for
-      // all reads and that just scales poorly as you make a deeper hierarchy.
-      parentArray.read(tx, offset, read, snapshotTimestamp, blocksRead);
-    }
-  }
-
-  private void copy(byte[] read, long firstBlock, int blockOffset, long lastBlock, byte[] currentValue, long blockId, BlocksRead blocksRead) {
-    if (currentValue != null) {
-      if (blocksRead == null || blocksRead.read(blockId)) {
-        int blockPosition = (int) ((blockId - firstBlock) * blockSize);
-        int shift = blockSize - blockOffset;
-        if (blockId == firstBlock) {
-          int firstBlockLength = Math.min(shift, read.length);
-          System.arraycopy(currentValue, blockOffset, read, 0, firstBlockLength);
-        } else {
-          int position = blockPosition - blockSize + shift;
-          if (blockId == lastBlock) {
-            int lastLength = read.length - position;
-            System.arraycopy(currentValue, 0, read, position, lastLength);
-          } else {
-            System.arraycopy(currentValue, 0, read, position, blockSize);
-          }
-        }
-      }
+  }
+
+  /**
+   * Key of the version of a block older than anything written to it.
+   */
+  private byte[] oldestVersion(long block) {
+    return hasVersionstamps() ? data.pack(Tuple.from(block, Versionstamp.complete(new byte[10]))) : data.get(block).get(0L).pack();
+  }
+
+  /**
+   * End of the versions of a block that can be read at the timestamp.
+   */
+  private byte[] versionsEnd(long block, long timestamp) {
+    Subspace versions = data.get(block);
+    if (timestamp == Long.MAX_VALUE) {
+      return versions.range().end;
     }
+    // A commit version takes the first 8 of the 10 bytes of a versionstamp's transaction version
+    return hasVersionstamps() ? versions.pack(Tuple.from(Versionstamp.complete(Arrays.copyOf(Longs.toByteArray(timestamp + 1), 10)))) :
+            versions.get(timestamp + 1).pack();
   }
 
-  public FDBArray snapshot() {
-    return snapshot(System.currentTimeMillis());
+  /**
+   * Timestamp of a (block, version) key, the commit version for versionstamps.
+   */
+  private long timestamp(Tuple key) {
+    return hasVersionstamps() ? Longs.fromByteArray(key.getVersionstamp(1).getTransactionVersion()) : key.getLong(1);
   }
 
-  public FDBArray snapshot(long timestamp) {
-    return new FDBArray(database, ds, timestamp);
+  /**
+   * Blocks that have been written to this array or any of its parents. Trims and zeroes that
+   * leave versions behind for snapshots keep their blocks, so this may include blocks that read
+   * as zeros but never misses one that has data.
+   */
+  public CompletableFuture<MutableRoaringBitmap> allocated() {
+    CompletableFuture<MutableRoaringBitmap> allocated = usedBlocksComplete().thenCompose($ -> usedBlocks.get());
+    if (parentArray == null) {
+      return allocated;
+    }
+    return allocated.thenCombine(parentArray.allocated(), (blocks, parentBlocks) -> {
+      blocks.or(parentBlocks);
+      return blocks;
+    });
   }
 
-  public FDBArray snapshot(String name) {
+  /**
+   * The blocks from firstBlock to lastBlock inclusive that allocated() has, reading only the part of
+   * each map that covers them.
+   */
+  public CompletableFuture<MutableRoaringBitmap> allocated(long firstBlock, long lastBlock) {
+    CompletableFuture<MutableRoaringBitmap> allocated = usedBlocksComplete().thenCompose($ -> usedBlocks.get(firstBlock, lastBlock));
+    if (parentArray == null) {
+      return allocated;
+    }
+    return allocated.thenCombine(parentArray.allocated(firstBlock, lastBlock), (blocks, parentBlocks) -> {
+      blocks.or(parentBlocks);
+      return blocks;
+    });
+  }
+
+  /**
+   * Bytes in the blocks that have been written. Reads the whole used block map, so it takes time
+   * proportional to the size of the volume.
+   */
+  public CompletableFuture<Long> usage() {
+    return usedBlocksComplete().thenCompose($ -> usedBlocks.count()).thenApply(usedBlocks -> usedBlocks * blockSize);
+  }
+
+  /**
+   * Completes once the used block map can be relied on, rebuilding it first when an earlier server
+   * may have left blocks out of it.
+   */
+  private CompletableFuture<Void> usedBlocksComplete() {
+    return blocksComplete ? CompletableFuture.completedFuture(null) : CompletableFuture.runAsync(this::completeUsedBlocks);
+  }
+
+  /**
+   * Sets the bit of every block that has a version, a delta or a zeroed range, a batch of keys per
+   * transaction. Writes meanwhile set their own bits so the map is complete once the scan is done.
+   * Bits left over for blocks that have since been discarded are harmless.
+   */
+  private synchronized void completeUsedBlocks() {
+    if (blocksComplete) {
+      return;
+    }
+    for (Subspace versions : asList(data, deltas, zeros)) {
+      byte[] begin = versions.range().begin;
+      while (begin != null) {
+        byte[] from = begin;
+        begin = database.run(tx -> {
+          List<KeyValue> keyValues = get(tx.getRange(from, versions.range().end, TRIM_BATCH).asList());
+          MutableRoaringBitmap found = new MutableRoaringBitmap();
+          long block = 0;
+          for (KeyValue keyValue : keyValues) {
+            block = versions.unpack(keyValue.getKey()).getLong(0);
+            // A zeroed range covers its blocks up to the end it holds
+            long end = versions == zeros ? Tuple.fromBytes(keyValue.getValue()).getLong(0) : block + 1;
+            found.add(block, end);
+          }
+          get(usedBlocks.set(tx, found));
+          // The other versions of the last block are skipped
+          return keyValues.size() < TRIM_BATCH ? null : versions.get(block + 1).pack();
+        });
+      }
+    }
     database.run(tx -> {
-      tx.mutate(MutationType.ADD, dependents, ONE);
+      usedBlocks.clearLegacy(tx);
+      tx.set(metadata.get(BLOCKS_COMPLETE_KEY).pack(), new byte[0]);
       return null;
     });
-    List<String> childDirectory = asList("com.sampullara.fdb.array", name);
-    DirectorySubspace childDs = get(DirectoryLayer.getDefault().create(database, childDirectory));
-    FDBArray.create(database, childDs, blockSize, ds, System.currentTimeMillis());
-    return new FDBArray(database, childDs);
+    blocksComplete = true;
   }
 
-  public void clear() {
-    database.run((Function<Transaction, Void>) tx -> {
-      tx.clear(data.pack());
-      usedBlocks.clear(tx);
-      return null;
+  /**
+   * Discards the whole blocks within the range, partial blocks at either end are left alone.
+   * When no snapshot view or dependent array can see the current versions of those blocks they
+   * are cleared outright. Otherwise, or when there is a parent to hide, a tombstone version is
+   * written that reads as zeros.
+   *
+   * @param offset
+   * @param length
+   * @return
+   */
+  public CompletableFuture<Void> trim(long offset, long length) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    long firstBlock = (offset + blockSize - 1) / blockSize;
+    long lastBlock = (offset + length) / blockSize;
+    if (firstBlock >= lastBlock) {
+      return CompletableFuture.completedFuture(null);
+    }
+    // Whether something retains the versions is read by each transaction that would clear them, so
+    // that a clone or named snapshot recorded meanwhile conflicts with it
+    CompletableFuture<Boolean> cleared = parentArray != null ? CompletableFuture.completedFuture(false) :
+            runAsync(tx -> retained(tx).thenApply(retained -> {
+              if (!retained) {
+                // Nothing can see these blocks anymore so a single range clear is enough
+                tx.clear(data.get(firstBlock).pack(), data.get(lastBlock).pack());
+                tx.clear(deltas.get(firstBlock).pack(), deltas.get(lastBlock).pack());
+              }
+              return !retained;
+            }));
+    return cleared.thenCompose(done -> {
+      if (done) {
+        // No versions are left for someone else and no tombstones hide a parent
+        return usedBlocks.clear(firstBlock, lastBlock - 1);
+      }
+      List<CompletableFuture<Void>> batches = new ArrayList<>();
+      for (long start = firstBlock; start < lastBlock; start += TRIM_BATCH) {
+        long batchStart = start;
+        long batchEnd = Math.min(start + TRIM_BATCH, lastBlock);
+        batches.add(runAsync(tx -> retained(tx).thenCompose(retained -> {
+          if (!retained) {
+            tx.clear(data.get(batchStart).pack(), data.get(batchEnd).pack());
+            tx.clear(deltas.get(batchStart).pack(), deltas.get(batchEnd).pack());
+          }
+          for (long block = batchStart; block < batchEnd; block++) {
+            setVersion(tx, data, block, TOMBSTONE);
+          }
+          // Clones index the tombstones hiding a parent as blocks of this layer, so they are marked
+          // used even where only the parent had written
+          return parentArray == null ? CompletableFuture.<Void>completedFuture(null) : usedBlocks.set(tx, batchStart, batchEnd - 1);
+        })));
+      }
+      return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]));
     });
   }
 
-  private void dependentDeleted() {
+  /**
+   * Zeros the range. Whole blocks are recorded as zeroed block ranges that reads expand to zeros
+   * so that the cost does not depend on the length, also when the blocks point at shared content,
+   * which compaction releases once nothing reads past the range. Partial blocks at either end are
+   * written.
+   *
+   * @param offset
+   * @param length
+   * @return
+   */
+  public CompletableFuture<Void> writeZeroes(long offset, long length) {
+    return writeZeroes(offset, length, false);
+  }
+
+  /**
+   * Zeros the range, keeping every block it touches allocated when asked to so that they are
+   * reported as data that reads as zeros rather than as holes.
+   */
+  public CompletableFuture<Void> writeZeroes(long offset, long length, boolean allocate) {
+    CompletableFuture<Void> zeroed = zero(offset, length);
+    if (!allocate || length == 0) {
+      return zeroed;
+    }
+    return zeroed.thenCompose($ -> usedBlocks.set(offset / blockSize, (offset + length - 1) / blockSize));
+  }
+
+  private CompletableFuture<Void> zero(long offset, long length) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    long firstBlock = (offset + blockSize - 1) / blockSize;
+    long lastBlock = (offset + length) / blockSize;
+    if (firstBlock >= lastBlock) {
+      return write(new byte[(int) length], offset);
+    }
+    List<CompletableFuture<Void>> parts = new ArrayList<>();
+    long firstBlockOffset = firstBlock * blockSize;
+    if (offset < firstBlockOffset) {
+      parts.add(write(new byte[(int) (firstBlockOffset - offset)], offset));
+    }
+    long lastBlockOffset = lastBlock * blockSize;
+    if (offset + length > lastBlockOffset) {
+      parts.add(write(new byte[(int) (offset + length - lastBlockOffset)], lastBlockOffset));
+    }
+    // Clones index zeroed ranges hiding a parent as blocks of this layer, so they are marked used even
+    // where only the parent had written. The bits are set first so that the map never misses a range.
+    CompletableFuture<Void> marked = parentArray == null ? CompletableFuture.completedFuture(null) :
+            usedBlocks.set(firstBlock, lastBlock - 1);
+    // Read in the transaction that clears so that a clone or named snapshot recorded meanwhile conflicts with it
+    parts.add(marked.thenCompose($ -> runAsync(tx -> retained(tx).thenCompose(retained -> retainedTimestamps(tx).thenCompose(timestamps ->
+            zeroed(tx, firstBlock, lastBlock - 1).thenApply(ranges -> {
+      if (!retained) {
+        // Nothing can see the old versions
+        tx.clear(data.get(firstBlock).pack(), data.get(lastBlock).pack());
+        tx.clear(deltas.get(firstBlock).pack(), deltas.get(lastBlock).pack());
+      }
+      NavigableSet<Long> boundaries = splitZeros(tx, ranges, firstBlock, lastBlock, timestamps);
+      if (retained || parentArray != null) {
+        // Split where the ranges still kept end so that no two ranges partly overlap, without them
+        // nothing shows through and the absence of blocks already reads as zeros
+        Long start = null;
+        for (long end : boundaries) {
+          if (start != null) {
+            setVersion(tx, zeros, start, Tuple.from(end).pack());
+          }
+          start = end;
+        }
+      }
+      return retained;
+    })))).thenCompose(retained -> retained || parentArray != null ? CompletableFuture.<Void>completedFuture(null) :
+            usedBlocks.clear(firstBlock, lastBlock - 1))));
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()]));
+  }
+
+  /**
+   * Splits the zeroed ranges that cross either end of the blocks about to be zeroed and deletes the ones
+   * within them that nothing reads at or after their timestamp anymore, the new range supersedes them.
+   * Returns the ends of the ranges left within, the new range is split at them.
+   *
+   * @param ranges what zeroed() finds for the blocks
+   * @param lastBlock exclusive
+   */
+  private NavigableSet<Long> splitZeros(Transaction tx, List<KeyValue> ranges, long firstBlock, long lastBlock, NavigableSet<Long> timestamps) {
+    NavigableSet<Long> boundaries = new TreeSet<>(asList(firstBlock, lastBlock));
+    for (KeyValue keyValue : ranges) {
+      Tuple key = zeros.unpack(keyValue.getKey());
+      long start = key.getLong(0);
+      long end = Tuple.fromBytes(keyValue.getValue()).getLong(0);
+      long innerStart = Math.max(start, firstBlock);
+      long innerEnd = Math.min(end, lastBlock);
+      boolean superseded = timestamps != null && timestamps.ceiling(timestamp(key)) == null;
+      tx.clear(keyValue.getKey());
+      if (start < firstBlock) {
+        tx.set(keyValue.getKey(), Tuple.from(firstBlock).pack());
+      }
+      if (!superseded) {
+        tx.set(zeros.pack(Tuple.from(innerStart, key.get(1))), Tuple.from(innerEnd).pack());
+        boundaries.add(innerStart);
+        boundaries.add(innerEnd);
+      }
+      if (end > lastBlock) {
+        tx.set(zeros.pack(Tuple.from(lastBlock, key.get(1))), Tuple.from(end).pack());
+      }
+    }
+    return boundaries;
+  }
+
+  /**
+   * The zeroed ranges covering any of the blocks from firstBlock to lastBlock inclusive. Zeroing splits
+   * ranges so that any two cover the same blocks or none in common, so the ones covering firstBlock all
+   * start where the last range starting before it does and one reverse read finds them.
+   */
+  private CompletableFuture<List<KeyValue>> zeroed(ReadTransaction tx, long firstBlock, long lastBlock) {
+    CompletableFuture<List<KeyValue>> covering = tx.getRange(zeros.range().begin, zeros.get(firstBlock).pack(), 1, true).asList()
+            .thenCompose(before -> {
+              if (before.isEmpty() || Tuple.fromBytes(before.get(0).getValue()).getLong(0) <= firstBlock) {
+                return CompletableFuture.completedFuture(Collections.<KeyValue>emptyList());
+              }
+              // Every version of the range, snapshots may read at an older one
+              return tx.getRange(zeros.get(zeros.unpack(before.get(0).getKey()).getLong(0)).range()).asList();
+            });
+    CompletableFuture<List<KeyValue>> within = tx.getRange(zeros.get(firstBlock).pack(), zeros.get(lastBlock + 1).pack()).asList();
+    return covering.thenCombine(within, (coveringRanges, withinRanges) -> {
+      List<KeyValue> ranges = new ArrayList<>(coveringRanges);
+      ranges.addAll(withinRanges);
+      return ranges;
+    });
+  }
+
+  /**
+   * Whether a dependent array, a named snapshot or a snapshot view in this process may still read the current versions.
+   * Versions that may point at shared content are always kept for compaction to release, so trims,
+   * zeroes and overwrites of a volume that shares content only reclaim space once it is compacted.
+   */
+  private CompletableFuture<Boolean> retained(ReadTransaction tx) {
+    if (sharesContent) {
+      return CompletableFuture.completedFuture(true);
+    }
+    return tx.get(dependents).thenCombine(tx.getRange(metadata.get(SNAPSHOTS).range(), 1).asList(),
+            (dependentCount, snapshots) -> {
+              Multiset<Long> viewTimestamps = views.get(ds.getPath());
+              return (dependentCount != null && Longs.fromByteArray(dependentCount) > 0) || !snapshots.isEmpty() ||
+                      (viewTimestamps != null && !viewTimestamps.isEmpty());
+            });
+  }
+
+  /**
+   * The timestamp a clone or named snapshot recorded by the transaction reads at, its read version. A
+   * commit that clears versions before the transaction commits conflicts with it, so it is retried
+   * rather than pinning what is gone. Anything that clears versions afterwards reads what it recorded
+   * in its own transaction.
+   */
+  private CompletableFuture<Long> pinnedVersion(Transaction tx) {
+    for (Subspace versions : asList(data, deltas, zeros)) {
+      tx.addReadConflictRange(versions.range().begin, versions.range().end);
+    }
+    return hasVersionstamps() ? tx.getReadVersion() : CompletableFuture.completedFuture(System.currentTimeMillis());
+  }
+
+  /**
+   * Timestamps that something other than the latest version may be read at: clones of this array, named
+   * snapshots and snapshot views in this process. Null when there are clones that predate the children registry, whose
+   * timestamps are unknown. Read by the transaction that clears versions so that it conflicts with a clone or named
+   * snapshot recorded meanwhile.
+   */
+  private CompletableFuture<NavigableSet<Long>> retainedTimestamps(ReadTransaction tx) {
+    CompletableFuture<byte[]> dependentCount = tx.get(dependents);
+    CompletableFuture<List<KeyValue>> clones = tx.getRange(metadata.get(CHILDREN).range()).asList();
+    CompletableFuture<Map<String, Long>> snapshots = snapshots(tx);
+    return CompletableFuture.allOf(dependentCount, clones, snapshots).thenApply($ -> {
+      byte[] count = dependentCount.join();
+      if (count != null && Longs.fromByteArray(count) > clones.join().size()) {
+        return null;
+      }
+      NavigableSet<Long> timestamps = new TreeSet<>(snapshots.join().values());
+      for (KeyValue clone : clones.join()) {
+        timestamps.add(Tuple.fromBytes(clone.getValue()).getLong(0));
+      }
+      Multiset<Long> viewTimestamps = views.get(ds.getPath());
+      if (viewTimestamps != null) {
+        timestamps.addAll(viewTimestamps.elementSet());
+      }
+      return timestamps;
+    });
+  }
+
+  static class Compaction {
+    final int scanned;
+    final int deleted;
+    // A full pass over the array has completed
+    final boolean done;
+
+    Compaction(int scanned, int deleted, boolean done) {
+      this.scanned = scanned;
+      this.deleted = deleted;
+      this.done = done;
+    }
+  }
+
+  /**
+   * Deletes block versions that nothing can read anymore, scanning at most maxKeys versions at batch
+   * priority from where the last call left off. A version is kept while it is the latest one or the
+   * latest one as of a clone or snapshot view timestamp. Versions hidden by a zeroed range are left to
+   * compactZeros.
+   */
+  CompletableFuture<Compaction> compact(int maxKeys) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    return database.runAsync(tx -> retainedTimestamps(tx).thenCompose(retained -> {
+      tx.options().setPriorityBatch();
+      byte[] cursorKey = metadata.get(COMPACTION_CURSOR_KEY).pack();
+      if (retained == null) {
+        return CompletableFuture.completedFuture(new Compaction(0, 0, true));
+      }
+      byte[] cursor = get(tx.get(cursorKey));
+      List<KeyValue> keyValues = get(tx.getRange(cursor == null ? data.range().begin : cursor, data.range().end, maxKeys).asList());
+      boolean done = keyValues.size() < maxKeys;
+      int deleted = 0;
+      for (int i = 0; i < keyValues.size() - 1; i++) {
+        Tuple version = data.unpack(keyValues.get(i).getKey());
+        Tuple next = data.unpack(keyValues.get(i + 1).getKey());
+        // The last version seen for a block is kept, even when the scan stopped before its later versions
+        if (version.getLong(0) == next.getLong(0)) {
+          Long readAt = retained.ceiling(timestamp(version));
+          if (readAt == null || readAt >= timestamp(next)) {
+            tx.clear(keyValues.get(i).getKey());
+            if (isPointer(keyValues.get(i).getValue())) {
+              ContentStore.open(database).release(tx, keyValues.get(i).getValue());
+            }
+            deleted++;
+          }
+        }
+      }
+      if (done) {
+        tx.clear(cursorKey);
+      } else {
+        byte[] last = keyValues.get(keyValues.size() - 1).getKey();
+        tx.set(cursorKey, Arrays.copyOf(last, last.length + 1));
+      }
+      return CompletableFuture.completedFuture(new Compaction(keyValues.size(), deleted, done));
+    }));
+  }
+
+  /**
+   * Deletes zeroed ranges, and the versions they hide, that nothing can read past anymore, scanning at
+   * most maxKeys ranges at batch priority from where the last call left off. A range is deleted when a
+   * later range from the same block covers it and no clone or snapshot view reads in between. Once
+   * nothing reads at a timestamp before a range, the versions and deltas of its blocks that it hides are
+   * deleted, releasing the shared content they point at, and without a parent to hide the range goes too.
+   */
+  CompletableFuture<Compaction> compactZeros(int maxKeys) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    return database.runAsync(tx -> retainedTimestamps(tx).thenCompose(retained -> {
+      tx.options().setPriorityBatch();
+      byte[] cursorKey = metadata.get(ZEROS_CURSOR_KEY).pack();
+      byte[] dataCursorKey = metadata.get(ZEROS_DATA_CURSOR_KEY).pack();
+      if (retained == null) {
+        return CompletableFuture.completedFuture(new Compaction(0, 0, true));
+      }
+      byte[] cursor = get(tx.get(cursorKey));
+      byte[] dataCursor = get(tx.get(dataCursorKey));
+      List<KeyValue> ranges = get(tx.getRange(cursor == null ? zeros.range().begin : cursor, zeros.range().end, maxKeys).asList());
+      boolean done = ranges.size() < maxKeys;
+      int scanned = 0;
+      int deleted = 0;
+      byte[] resume = null;
+      byte[] resumeData = null;
+      for (int i = 0; i < ranges.size(); i++) {
+        Tuple key = zeros.unpack(ranges.get(i).getKey());
+        long start = key.getLong(0);
+        long end = Tuple.fromBytes(ranges.get(i).getValue()).getLong(0);
+        Tuple version = Tuple.from(key.get(1));
+        Long readAt = retained.ceiling(timestamp(key));
+        scanned++;
+        boolean covered = false;
+        for (int j = i + 1; j < ranges.size() && !covered; j++) {
+          Tuple later = zeros.unpack(ranges.get(j).getKey());
+          if (later.getLong(0) != start) break;
+          covered = Tuple.fromBytes(ranges.get(j).getValue()).getLong(0) >= end && (readAt == null || readAt >= timestamp(later));
+        }
+        if (covered) {
+          tx.clear(ranges.get(i).getKey());
+          deleted++;
+          continue;
+        }
+        if (retained.lower(timestamp(key)) != null) {
+          // Someone still reads what the range hides
+          continue;
+        }
+        // Zeroing wins over a version written in the same millisecond or transaction
+        boolean resuming = i == 0 && dataCursor != null && Arrays.equals(ranges.get(0).getKey(), cursor);
+        byte[] begin = resuming ? dataCursor : data.get(start).pack();
+        List<KeyValue> versions = get(tx.getRange(begin, data.get(end).pack(), maxKeys).asList());
+        List<KeyValue> rangeDeltas = get(tx.getRange(deltas.get(start).pack(), deltas.get(end).pack(), maxKeys).asList());
+        scanned += versions.size() + rangeDeltas.size();
+        for (KeyValue keyValue : versions) {
+          if (Tuple.from(data.unpack(keyValue.getKey()).get(1)).compareTo(version) <= 0) {
+            tx.clear(keyValue.getKey());
+            if (isPointer(keyValue.getValue())) {
+              ContentStore.open(database).release(tx, keyValue.getValue());
+            }
+            deleted++;
+          }
+        }
+        for (KeyValue keyValue : rangeDeltas) {
+          if (Tuple.from(deltas.unpack(keyValue.getKey()).get(1)).compareTo(version) <= 0) {
+            tx.clear(keyValue.getKey());
+            deleted++;
+          }
+        }
+        if (versions.size() == maxKeys) {
+          // The range has more versions than a transaction scans, the next call goes on from here
+          resume = ranges.get(i).getKey();
+          byte[] last = versions.get(versions.size() - 1).getKey();
+          resumeData = Arrays.copyOf(last, last.length + 1);
+          break;
+        }
+        // Deltas left under the range would show through once it is gone
+        if (parentArray == null && rangeDeltas.size() < maxKeys) {
+          tx.clear(ranges.get(i).getKey());
+          deleted++;
+        }
+      }
+      if (resume != null) {
+        done = false;
+        tx.set(cursorKey, resume);
+        tx.set(dataCursorKey, resumeData);
+      } else if (done) {
+        tx.clear(cursorKey);
+        tx.clear(dataCursorKey);
+      } else {
+        byte[] last = ranges.get(ranges.size() - 1).getKey();
+        tx.set(cursorKey, Arrays.copyOf(last, last.length + 1));
+        tx.clear(dataCursorKey);
+      }
+      return CompletableFuture.completedFuture(new Compaction(scanned, deleted, done));
+    }));
+  }
+
+  /**
+   * Folds deltas into new versions of their blocks, scanning at most maxKeys deltas at batch priority
+   * from where the last call left off. Deltas nothing reads at a timestamp before the fold anymore are
+   * deleted. A fold conflicts with deltas written to its blocks while it runs and is retried, the
+   * writes never wait for it.
+   */
+  CompletableFuture<Compaction> fold(int maxKeys) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    return database.runAsync(tx -> retainedTimestamps(tx).thenCompose(retained -> {
+      tx.options().setPriorityBatch();
+      byte[] cursorKey = metadata.get(DELTA_CURSOR_KEY).pack();
+      if (retained == null) {
+        return CompletableFuture.completedFuture(new Compaction(0, 0, true));
+      }
+      byte[] cursor = get(tx.get(cursorKey));
+      List<KeyValue> keyValues = get(tx.getRange(cursor == null ? deltas.range().begin : cursor, deltas.range().end, maxKeys).asList());
+      boolean done = keyValues.size() < maxKeys;
+      // Newest delta of each block, blocks that were folded since but still have deltas some reader needs are skipped
+      Map<Long, Tuple> newest = new LinkedHashMap<>();
+      for (KeyValue keyValue : keyValues) {
+        Tuple keyTuple = deltas.unpack(keyValue.getKey());
+        newest.put(keyTuple.getLong(0), Tuple.from(keyTuple.get(1)));
+      }
+      for (Map.Entry<Long, Tuple> entry : newest.entrySet()) {
+        long block = entry.getKey();
+        List<KeyValue> latest = get(tx.getRange(data.get(block).range(), 1, true).asList());
+        if (latest.isEmpty() || Tuple.from(data.unpack(latest.get(0).getKey()).get(1)).compareTo(entry.getValue()) < 0) {
+          byte[] folded = new byte[blockSize];
+          get(read(tx, block * blockSize, folded, 0, blockSize, Long.MAX_VALUE));
+          setVersion(tx, data, block, isZero(folded, 0, blockSize) ? TOMBSTONE : get(storeValue(tx, folded)));
+        }
+      }
+      int deleted = 0;
+      for (KeyValue keyValue : keyValues) {
+        if (retained.ceiling(timestamp(deltas.unpack(keyValue.getKey()))) == null) {
+          tx.clear(keyValue.getKey());
+          deleted++;
+        }
+      }
+      if (done) {
+        tx.clear(cursorKey);
+      } else {
+        byte[] last = keyValues.get(keyValues.size() - 1).getKey();
+        tx.set(cursorKey, Arrays.copyOf(last, last.length + 1));
+      }
+      return CompletableFuture.completedFuture(new Compaction(keyValues.size(), deleted, done));
+    }));
+  }
+
+  /**
+   * Read latest blocks.
+   *
+   * @param read
+   * @param offset
+   * @return
+   */
+  public CompletableFuture<Void> read(byte[] read, long offset) {
+    return read(read, offset, Long.MAX_VALUE);
+  }
+
+  /**
+   * Read blocks as of a particular timestamp, a commit version for arrays with versionstamps.
+   *
+   * @param read
+   * @param offset
+   * @param timestamp
+   * @return
+   */
+  public CompletableFuture<Void> read(byte[] read, long offset, long timestamp) {
+    return database.readAsync(tx -> read(tx, offset, read, 0, read.length, timestamp));
+  }
+
+  /**
+   * Reads length bytes at offset into read at position. The range is scanned in this array and its
+   * ancestors concurrently and each block is taken from the nearest layer that has a version of it.
+   * With a layer index the ancestors are only scanned for the runs of blocks the index says they own.
+   */
+  private CompletableFuture<Void> read(ReadTransaction tx, long offset, byte[] read, int position, int length, long readTimestamp) {
+    if (length == 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    long firstBlock = offset / blockSize;
+    long lastBlock = (offset + length - 1) / blockSize;
+    List<FDBArray> chain = new ArrayList<>();
+    for (FDBArray layer = this; layer != null; layer = layer.parentArray) {
+      chain.add(layer);
+    }
+    // Each layer can only be read as of the earliest snapshot above it
+    long[] timestamps = new long[chain.size()];
+    long timestamp = readTimestamp;
+    for (int depth = 0; depth < chain.size(); depth++) {
+      Long layerSnapshot = chain.get(depth).snapshot;
+      timestamp = layerSnapshot == null ? timestamp : Math.min(timestamp, layerSnapshot);
+      timestamps[depth] = timestamp;
+    }
+    // Another process may have flattened one of the layers since we opened it
+    List<CompletableFuture<byte[]>> parentKeyFutures = new ArrayList<>();
+    for (int depth = 0; depth < chain.size() - 1; depth++) {
+      parentKeyFutures.add(tx.get(chain.get(depth).metadata.get(PARENT_KEY).pack()));
+    }
+    CompletableFuture<List<byte[]>> parentKeys = collect(parentKeyFutures);
+    List<CompletableFuture<Layer>> scans = new ArrayList<>();
+    scans.add(scan(tx, 0, firstBlock, lastBlock, timestamps[0]));
+    CompletableFuture<List<Layer>> ancestors;
+    if (chain.size() == 1) {
+      ancestors = CompletableFuture.completedFuture(Collections.emptyList());
+    } else if (!layerIndexed) {
+      for (int depth = 1; depth < chain.size(); depth++) {
+        scans.add(chain.get(depth).scan(tx, depth, firstBlock, lastBlock, timestamps[depth]));
+      }
+      ancestors = CompletableFuture.completedFuture(Collections.emptyList());
+    } else {
+      ancestors = tx.getRange(
+              KeySelector.lastLessOrEqual(layers.pack(Tuple.from(firstBlock))),
+              KeySelector.firstGreaterOrEqual(layers.pack(Tuple.from(lastBlock + 1))), ReadTransaction.ROW_LIMIT_UNLIMITED, false).asList()
+              .thenCompose(runs -> {
+                List<CompletableFuture<Layer>> runScans = new ArrayList<>();
+                for (KeyValue run : runs) {
+                  if (!layers.contains(run.getKey())) continue;
+                  Tuple owner = Tuple.fromBytes(run.getValue());
+                  long runFirst = Math.max(layers.unpack(run.getKey()).getLong(0), firstBlock);
+                  long runLast = Math.min(owner.getLong(0) - 1, lastBlock);
+                  // Blocks no layer owns have never been written and read as zeros. The owner may have
+                  // written a block after it was cloned so the layers below it are read as well, and a
+                  // layer that has been flattened holds copies of everything it inherited.
+                  if (runFirst <= runLast) {
+                    for (int depth = (int) Math.min(owner.getLong(1), chain.size() - 1); depth < chain.size(); depth++) {
+                      runScans.add(chain.get(depth).scan(tx, depth, runFirst, runLast, timestamps[depth]));
+                    }
+                  }
+                }
+                return collect(runScans);
+              });
+    }
+    return CompletableFuture.allOf(parentKeys, ancestors).thenCombine(collect(scans), ($, local) -> {
+      List<Layer> runs = ancestors.join();
+      for (int depth = 0; depth < chain.size() - 1; depth++) {
+        if (parentKeys.join().get(depth) == null) {
+          FDBArray flattened = chain.get(depth);
+          flattened.parentArray = null;
+          flattened.layerIndexed = false;
+          return false;
+        }
+      }
+      int blocks = (int) (lastBlock - firstBlock + 1);
+      List<Layer> found = new ArrayList<>(local);
+      found.addAll(runs);
+      Metrics current = metrics;
+      if (current != null) {
+        current.layers(found.stream().mapToInt(layer -> layer.depth).max().orElse(0) + 1);
+      }
+      byte[][] values = merge(found, firstBlock, blocks);
+      for (int i = 0; i < blocks; i++) {
+        long blockStart = (firstBlock + i) * blockSize;
+        long from = Math.max(offset, blockStart);
+        long to = Math.min(offset + length, blockStart + blockSize);
+        copy(values[i] == null ? TOMBSTONE : values[i], (int) (from - blockStart), read, position + (int) (from - offset), (int) (to - from));
+      }
+      return true;
+    }).thenCompose(complete -> {
+      // Read again now that the flattened layer no longer links to its parent
+      return complete ? CompletableFuture.completedFuture(null) : read(tx, offset, read, position, length, readTimestamp);
+    });
+  }
+
+  /**
+   * Versions of a run of blocks found in one layer of the chain, and the deltas written to each
+   * block since its version, oldest first.
+   */
+  private static class Layer {
+    final int depth;
+    final long firstBlock;
+    final byte[][] values;
+    final Map<Integer, List<Tuple>> deltas;
+
+    Layer(int depth, long firstBlock, byte[][] values, Map<Integer, List<Tuple>> deltas) {
+      this.depth = depth;
+      this.firstBlock = firstBlock;
+      this.values = values;
+      this.deltas = deltas;
+    }
+  }
+
+  /**
+   * The latest version of each block in the range this array alone has as of the timestamp, null
+   * where it has none, with blocks it has zeroed as tombstones and the deltas on top of them.
+   */
+  private CompletableFuture<Layer> scan(ReadTransaction tx, int depth, long firstBlock, long lastBlock, long snapshotTimestamp) {
+    CompletableFuture<List<KeyValue>> zeroed = zeroed(tx, firstBlock, lastBlock);
+    // Only the newest version of each block at or before the timestamp is fetched, so a block costs
+    // one key however many times it has been rewritten
+    List<CompletableFuture<List<KeyValue>>> versions = new ArrayList<>();
+    for (long block = firstBlock; block <= lastBlock; block++) {
+      versions.add(tx.getRange(data.get(block).range().begin, versionsEnd(block, snapshotTimestamp), 1, true).asList());
+    }
+    // Compaction folds deltas into versions so there are only a few of them
+    CompletableFuture<List<KeyValue>> deltaList = hasVersionstamps() ?
+            tx.getRange(deltas.get(firstBlock).pack(), deltas.get(lastBlock + 1).pack()).asList() :
+            CompletableFuture.completedFuture(Collections.emptyList());
+    CompletableFuture<List<KeyValue>> latest = collect(versions).thenApply(versionLists ->
+            versionLists.stream().flatMap(List::stream).collect(Collectors.toList()));
+    CompletableFuture<List<byte[]>> loaded = latest.thenCompose(keyValues ->
+            collect(keyValues.stream().map(keyValue -> loadValue(tx, keyValue.getValue())).collect(Collectors.toList())));
+    return loaded.thenCombine(CompletableFuture.allOf(zeroed, deltaList), (blockValues, $) -> {
+      int blocks = (int) (lastBlock - firstBlock + 1);
+      Tuple[] versionOf = new Tuple[blocks];
+      byte[][] values = new byte[blocks][];
+      List<KeyValue> keyValues = latest.join();
+      for (int i = 0; i < keyValues.size(); i++) {
+        Tuple keyTuple = data.unpack(keyValues.get(i).getKey());
+        int index = (int) (keyTuple.getLong(0) - firstBlock);
+        versionOf[index] = Tuple.from(keyTuple.get(1));
+        values[index] = blockValues.get(i);
+      }
+      for (KeyValue keyValue : zeroed.join()) {
+        Tuple keyTuple = zeros.unpack(keyValue.getKey());
+        if (timestamp(keyTuple) <= snapshotTimestamp) {
+          Tuple version = Tuple.from(keyTuple.get(1));
+          long start = Math.max(keyTuple.getLong(0), firstBlock);
+          long end = Math.min(Tuple.fromBytes(keyValue.getValue()).getLong(0), lastBlock + 1);
+          for (long block = start; block < end; block++) {
+            int index = (int) (block - firstBlock);
+            // Zeroing wins over a block written in the same millisecond or transaction
+            if (versionOf[index] == null || version.compareTo(versionOf[index]) >= 0) {
+              versionOf[index] = version;
+              values[index] = TOMBSTONE;
+            }
+          }
+        }
+      }
+      Map<Integer, List<Tuple>> blockDeltas = new HashMap<>();
+      for (KeyValue keyValue : deltaList.join()) {
+        Tuple keyTuple = deltas.unpack(keyValue.getKey());
+        int index = (int) (keyTuple.getLong(0) - firstBlock);
+        // Deltas older than the version have been folded into it or overwritten
+        if (timestamp(keyTuple) <= snapshotTimestamp &&
+                (versionOf[index] == null || Tuple.from(keyTuple.get(1)).compareTo(versionOf[index]) > 0)) {
+          blockDeltas.computeIfAbsent(index, k -> new ArrayList<>()).add(Tuple.fromBytes(keyValue.getValue()));
+        }
+      }
+      return new Layer(depth, firstBlock, values, blockDeltas);
+    });
+  }
+
+  /**
+   * Takes each block from the nearest layer that has a version of it and applies the deltas written
+   * to it in that layer and the ones above it. Blocks nothing has written are null.
+   */
+  private byte[][] merge(List<Layer> scans, long firstBlock, int blocks) {
+    scans.sort(Comparator.comparingInt(layer -> layer.depth));
+    byte[][] values = new byte[blocks][];
+    boolean[] found = new boolean[blocks];
+    List<List<Tuple>> pending = new ArrayList<>(Collections.nCopies(blocks, null));
+    for (Layer layer : scans) {
+      for (int i = 0; i < layer.values.length; i++) {
+        int index = (int) (layer.firstBlock + i - firstBlock);
+        if (found[index]) continue;
+        List<Tuple> layerDeltas = layer.deltas.get(i);
+        if (layerDeltas != null) {
+          // Deeper layers were written before the ones above them
+          List<Tuple> blockDeltas = new ArrayList<>(layerDeltas);
+          if (pending.get(index) != null) blockDeltas.addAll(pending.get(index));
+          pending.set(index, blockDeltas);
+        }
+        if (layer.values[i] != null) {
+          values[index] = layer.values[i];
+          found[index] = true;
+        }
+      }
+    }
+    for (int i = 0; i < blocks; i++) {
+      if (pending.get(i) != null) {
+        byte[] block = new byte[blockSize];
+        if (values[i] != null && values[i].length > 0) {
+          System.arraycopy(values[i], 0, block, 0, blockSize);
+        }
+        for (Tuple delta : pending.get(i)) {
+          byte[] bytes = delta.getBytes(1);
+          System.arraycopy(bytes, 0, block, (int) delta.getLong(0), bytes.length);
+        }
+        values[i] = block;
+      }
+    }
+    return values;
+  }
+
+  private static <T> CompletableFuture<List<T>> collect(List<CompletableFuture<T>> futures) {
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+            .thenApply($ -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+  }
+
+  private static void copy(byte[] value, int valueOffset, byte[] read, int position, int length) {
+    if (value.length == 0) {
+      // Tombstone
+      Arrays.fill(read, position, position + length, (byte) 0);
+    } else {
+      System.arraycopy(value, valueOffset, read, position, length);
+    }
+  }
+
+  public FDBArray snapshot() {
+    return snapshot(currentVersion());
+  }
+
+  /**
+   * A read only view as of the timestamp that holds on to the versions it reads until it is released.
+   * Only compaction and trims in this process know about it, and versions already compacted before it
+   * was taken are gone, so a timestamp in the past may read blocks that have since been reclaimed.
+   * Named snapshots are kept by every server.
+   */
+  public FDBArray snapshot(long timestamp) {
+    return view(database, ds, timestamp);
+  }
+
+  /**
+   * Releases a snapshot view so that trims can reclaim the versions it was holding on to.
+   */
+  public synchronized void release() {
+    if (snapshot == null) {
+      throw new IllegalStateException("Only snapshot views can be released");
+    }
+    Multiset<Long> viewTimestamps = views.get(ds.getPath());
+    if (!released && viewTimestamps != null) {
+      released = true;
+      viewTimestamps.remove(snapshot);
+    }
+  }
+
+  /**
+   * Records a named snapshot of the array as of now, the version of the transaction that records it.
+   * Its versions are kept until it is released.
+   */
+  public long createSnapshot(String name) {
+    return recordSnapshot(name, null);
+  }
+
+  /**
+   * Records a named snapshot as of a timestamp. Versions that were compacted before it was recorded
+   * can't be brought back so the timestamp should not be in the past.
+   */
+  public long createSnapshot(String name, long timestamp) {
+    return recordSnapshot(name, timestamp);
+  }
+
+  /**
+   * @param timestamp null for the version of the recording transaction
+   */
+  private long recordSnapshot(String name, Long timestamp) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    byte[] key = metadata.get(SNAPSHOTS).pack(name);
+    return database.run(tx -> {
+      if (get(tx.get(key)) != null) {
+        throw new IllegalArgumentException("Snapshot " + name + " already exists");
+      }
+      long recorded = timestamp == null ? get(pinnedVersion(tx)) : timestamp;
+      tx.set(key, Tuple.from(recorded).pack());
+      return recorded;
+    });
+  }
+
+  /**
+   * Named snapshots and their timestamps, oldest first.
+   */
+  public Map<String, Long> listSnapshots() {
+    return get(database.readAsync(this::snapshots));
+  }
+
+  private CompletableFuture<Map<String, Long>> snapshots(ReadTransaction tx) {
+    Subspace snapshots = metadata.get(SNAPSHOTS);
+    return tx.getRange(snapshots.range()).asList().thenApply(keyValues -> {
+      List<Map.Entry<String, Long>> entries = new ArrayList<>();
+      for (KeyValue keyValue : keyValues) {
+        entries.add(new AbstractMap.SimpleEntry<>(snapshots.unpack(keyValue.getKey()).getString(0),
+                Tuple.fromBytes(keyValue.getValue()).getLong(0)));
+      }
+      entries.sort(Map.Entry.comparingByValue());
+      Map<String, Long> byTimestamp = new LinkedHashMap<>();
+      for (Map.Entry<String, Long> entry : entries) {
+        byTimestamp.put(entry.getKey(), entry.getValue());
+      }
+      return byTimestamp;
+    });
+  }
+
+  /**
+   * A read only view of a named snapshot, it doesn't need to be released.
+   */
+  public FDBArray openSnapshot(String name) {
+    byte[] value = database.run(tx -> get(tx.get(metadata.get(SNAPSHOTS).pack(name))));
+    if (value == null) {
+      throw new IllegalArgumentException("No snapshot named " + name);
+    }
+    FDBArray view = new FDBArray(database, ds, Tuple.fromBytes(value).getLong(0));
+    view.released = true;
+    return view;
+  }
+
+  /**
+   * Forgets a named snapshot so that compaction and trims can reclaim the versions only it could read.
+   */
+  public void releaseSnapshot(String name) {
+    byte[] key = metadata.get(SNAPSHOTS).pack(name);
+    database.run(tx -> {
+      if (get(tx.get(key)) == null) {
+        throw new IllegalArgumentException("No snapshot named " + name);
+      }
+      tx.clear(key);
+      return null;
+    });
+  }
+
+  /**
+   * Clones the array as of now. The clone reads at the version of the transaction that registers it.
+   */
+  public FDBArray snapshot(String name) {
+    List<String> childDirectory = asList("com.sampullara.fdb.array", name);
+    long timestamp = database.run(tx -> {
+      long version = get(pinnedVersion(tx));
+      tx.mutate(MutationType.ADD, dependents, ONE);
+      tx.set(metadata.get(CHILDREN).pack(Tuple.fromList(childDirectory)), Tuple.from(version).pack());
+      return version;
+    });
+    DirectorySubspace childDs = get(DirectoryLayer.getDefault().create(database, childDirectory));
+    FDBArray child = FDBArray.create(database, childDs, blockSize, sectorSize, formatVersion, codec, ds, timestamp);
+    child.indexLayers();
+    if (dedup) {
+      child.setDedup(true);
+    }
+    return new FDBArray(database, childDs);
+  }
+
+  /**
+   * Records which ancestor owns each block as of the clone so reads skip the layers in between. Once
+   * complete, the used block maps of the ancestors are supersets of the blocks they have versions of,
+   * so the first ancestor whose map has a block is the shallowest that can own it. Anything written to
+   * an ancestor after the clone is newer than the clone reads at, and a layer that turns out to have no
+   * version of a block passes the read on to its own ancestors.
+   */
+  private void indexLayers() {
+    MutableRoaringBitmap claimed = new MutableRoaringBitmap();
+    List<long[]> runs = new ArrayList<>();
+    int depth = 1;
+    for (FDBArray ancestor = parentArray; ancestor != null; ancestor = ancestor.parentArray, depth++) {
+      // Maps that earlier servers wrote are rebuilt first, a block missing from one would be read from too deep a layer
+      FDBArray layer = ancestor;
+      MutableRoaringBitmap owned = get(layer.usedBlocksComplete().thenCompose($ -> layer.usedBlocks.get()));
+      owned.andNot(claimed);
+      claimed.or(owned);
+      long runStart = -1;
+      long previous = -1;
+      for (int bit : owned) {
+        long block = bit & 0xFFFFFFFFL;
+        if (block != previous + 1) {
+          if (runStart != -1) runs.add(new long[]{runStart, previous + 1, depth});
+          runStart = block;
+        }
+        previous = block;
+      }
+      if (runStart != -1) runs.add(new long[]{runStart, previous + 1, depth});
+    }
+    runs.sort((a, b) -> Long.compare(a[0], b[0]));
+    for (int start = 0; start < runs.size(); start += LAYER_BATCH) {
+      List<long[]> batch = runs.subList(start, Math.min(start + LAYER_BATCH, runs.size()));
+      database.run(tx -> {
+        for (long[] run : batch) {
+          tx.set(layers.pack(Tuple.from(run[0])), Tuple.from(run[1], run[2]).pack());
+        }
+        return null;
+      });
+    }
+    int layerCount = depth - 1;
+    database.run(tx -> {
+      tx.set(metadata.get(LAYER_INDEX_KEY).pack(), Ints.toByteArray(layerCount));
+      return null;
+    });
+  }
+
+  /**
+   * Copies every block still inherited from the ancestors into this array and then detaches it from
+   * its parent, so reads cost a single layer and the parent can be deleted. The copies are written as
+   * the oldest version so that any write to the array while it is being flattened wins over them. The
+   * blocks are found through the used block maps of the ancestors, which are rebuilt first when an
+   * earlier server may have left blocks out, and the parent is only dropped once a second pass finds
+   * nothing left to copy. Safe to run while the array is being written and to run again if it is
+   * interrupted.
+   *
+   * @param bytesPerSecond limit on the rate blocks are copied at
+   */
+  public void flatten(int bytesPerSecond) {
+    if (snapshot != null) {
+      throw new IllegalStateException("FDBArray is read only");
+    }
+    FDBArray parent = parentArray;
+    if (parent == null) {
+      return;
+    }
+    RateLimiter limiter = RateLimiter.create(bytesPerSecond);
+    copyInherited(parent, limiter, true);
+    long missing = copyInherited(parent, limiter, false);
+    if (missing > 0) {
+      throw new IllegalStateException(missing + " inherited blocks were not copied, the array keeps its parent");
+    }
+    database.run(tx -> {
+      tx.clear(metadata.get(PARENT_KEY).pack());
+      tx.clear(metadata.get(PARENT_TIMESTAMP_KEY).pack());
+      tx.clear(metadata.get(LAYER_INDEX_KEY).pack());
+      tx.clear(layers.range());
+      tx.mutate(MutationType.ADD, parent.dependents, MINUS_ONE);
+      tx.clear(parent.metadata.get(CHILDREN).pack(Tuple.fromList(ds.getPath())));
+      return null;
+    });
+    parentArray = null;
+    layerIndexed = false;
+  }
+
+  /**
+   * Goes through every block the ancestors have a batch at a time, copying the ones this array
+   * still inherits or only counting them.
+   *
+   * @return the number of inherited blocks found
+   */
+  private long copyInherited(FDBArray parent, RateLimiter limiter, boolean copy) {
+    int batchBlocks = Math.max(1, WRITE_BATCH / blockSize);
+    long[] batch = new long[batchBlocks];
+    int count = 0;
+    long inherited = 0;
+    for (int bit : get(parent.allocated())) {
+      batch[count++] = bit & 0xFFFFFFFFL;
+      if (count == batchBlocks) {
+        inherited += copyInherited(parent, batch, count, copy);
+        limiter.acquire(count * blockSize);
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      inherited += copyInherited(parent, batch, count, copy);
+    }
+    return inherited;
+  }
+
+  /**
+   * Copies the blocks in the batch that this array has no version of from the ancestors. Blocks
+   * that read as zeros are left out, without a parent they read as zeros anyway.
+   */
+  private int copyInherited(FDBArray parent, long[] blocks, int count, boolean copy) {
+    return database.run(tx -> {
+      MutableRoaringBitmap copied = new MutableRoaringBitmap();
+      int start = 0;
+      while (start < count) {
+        // Runs of consecutive blocks are read together
+        int end = start + 1;
+        while (end < count && blocks[end] == blocks[end - 1] + 1) end++;
+        long firstBlock = blocks[start];
+        long lastBlock = blocks[end - 1];
+        boolean[] owned = ownedBlocks(tx, firstBlock, lastBlock);
+        byte[] inherited = new byte[(int) (lastBlock - firstBlock + 1) * blockSize];
+        get(parent.read(tx, firstBlock * blockSize, inherited, 0, inherited.length, Long.MAX_VALUE));
+        for (int i = 0; i < owned.length; i++) {
+          if (!owned[i] && !isZero(inherited, i * blockSize, blockSize)) {
+            if (copy) {
+              tx.set(oldestVersion(firstBlock + i), get(storeValue(tx, Arrays.copyOfRange(inherited, i * blockSize, (i + 1) * blockSize))));
+            }
+            copied.add((int) (firstBlock + i));
+          }
+        }
+        start = end;
+      }
+      if (copy) {
+        get(usedBlocks.set(tx, copied));
+      }
+      return copied.getCardinality();
+    });
+  }
+
+  /**
+   * Which blocks in the range have a version or a zeroed range of their own.
+   */
+  private boolean[] ownedBlocks(ReadTransaction tx, long firstBlock, long lastBlock) {
+    boolean[] owned = new boolean[(int) (lastBlock - firstBlock + 1)];
+    CompletableFuture<List<KeyValue>> zeroed = zeroed(tx, firstBlock, lastBlock);
+    for (KeyValue keyValue : tx.getRange(data.get(firstBlock).pack(), data.get(lastBlock + 1).pack())) {
+      owned[(int) (data.unpack(keyValue.getKey()).getLong(0) - firstBlock)] = true;
+    }
+    for (KeyValue keyValue : get(zeroed)) {
+      long start = Math.max(zeros.unpack(keyValue.getKey()).getLong(0), firstBlock);
+      long end = Math.min(Tuple.fromBytes(keyValue.getValue()).getLong(0), lastBlock + 1);
+      for (long block = start; block < end; block++) {
+        owned[(int) (block - firstBlock)] = true;
+      }
+    }
+    return owned;
+  }
+
+  /**
+   * Checked a word at a time, most blocks that aren't zeros differ in their first word.
+   */
+  private static boolean isZero(byte[] bytes, int start, int length) {
+    ByteBuffer words = ByteBuffer.wrap(bytes);
+    int end = start + length;
+    int i = start;
+    for (; i + Long.BYTES <= end; i += Long.BYTES) {
+      if (words.getLong(i) != 0) return false;
+    }
+    for (; i < end; i++) {
+      if (bytes[i] != 0) return false;
+    }
+    return true;
+  }
+
+  public void clear() {
+    releaseContent();
+    database.run((Function<Transaction, Void>) tx -> {
+      tx.clear(data.pack());
+      tx.clear(zeros.pack());
+      tx.clear(deltas.pack());
+      tx.clear(metadata.get(COMPACTION_CURSOR_KEY).pack());
+      tx.clear(metadata.get(DELTA_CURSOR_KEY).pack());
+      tx.clear(metadata.get(ZEROS_CURSOR_KEY).pack());
+      tx.clear(metadata.get(ZEROS_DATA_CURSOR_KEY).pack());
+      tx.clear(metadata.get(WRITTEN_BYTES_KEY).pack());
+      tx.clear(metadata.get(STORED_BYTES_KEY).pack());
+      usedBlocks.clear(tx);
+      // Nothing is left that the map could miss
+      tx.set(metadata.get(BLOCKS_COMPLETE_KEY).pack(), new byte[0]);
+      return null;
+    });
+    blocksComplete = true;
+  }
+
+  /**
+   * Deletes every version of the array a batch at a time, releasing the shared content they point at.
+   */
+  private void releaseContent() {
+    if (!sharesContent) {
+      return;
+    }
+    boolean done;
+    do {
+      done = database.run(tx -> {
+        List<KeyValue> keyValues = get(tx.getRange(data.range(), TRIM_BATCH).asList());
+        for (KeyValue keyValue : keyValues) {
+          if (isPointer(keyValue.getValue())) {
+            ContentStore.open(database).release(tx, keyValue.getValue());
+          }
+        }
+        if (!keyValues.isEmpty()) {
+          byte[] last = keyValues.get(keyValues.size() - 1).getKey();
+          tx.clear(data.range().begin, Arrays.copyOf(last, last.length + 1));
+        }
+        return keyValues.size() < TRIM_BATCH;
+      });
+    } while (!done);
+  }
+
+  private void dependentDeleted(List<String> childDirectory) {
     database.run(tx -> {
       tx.mutate(MutationType.ADD, dependents, MINUS_ONE);
+      tx.clear(metadata.get(CHILDREN).pack(Tuple.fromList(childDirectory)));
       return null;
     });
   }
@@ -356,7 +1851,8 @@ public class FDBArray {
       return bytes == null || Longs.fromByteArray(bytes) == 0;
     });
     if (deletable) {
-      if (parentArray != null) parentArray.dependentDeleted();
+      releaseContent();
+      if (parentArray != null) parentArray.dependentDeleted(ds.getPath());
       get(ds.remove(database));
     } else {
       throw new IllegalStateException("Array still has dependents");
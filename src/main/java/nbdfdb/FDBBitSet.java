@@ -19,61 +19,227 @@ package nbdfdb;
 
 import com.apple.foundationdb.*;
 import com.apple.foundationdb.subspace.Subspace;
-import org.roaringbitmap.RoaringBitmap;
-import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import com.apple.foundationdb.tuple.Tuple;
 import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * A bit set stored as fixed size chunks of raw bits, bit i of a chunk is bit i % 8 of byte i / 8,
+ * that are changed with BIT_OR and BIT_AND mutations. Changes read nothing so they never conflict,
+ * not even with changes to other bits of the same chunk. Keeping a count per chunk would mean reading
+ * the chunk in every change, so counting reads all of the chunks instead.
+ */
 public class FDBBitSet {
+  // Chunks changed or counted per transaction when working through a range in its own transactions
+  private static final int CHUNK_BATCH = 1000;
+
   private final Database database;
-  private final Subspace subspace;
-  private final int blockSize;
-  private final byte[] allSetBytes;
+  // Chunk index -> bits
+  private final Subspace chunks;
+  // Earlier arrays kept all of the bits in one serialized RoaringBitmap here
+  private final byte[] legacyKey;
+  private final int chunkSize;
+  private final long chunkBits;
   private final Range subspaceRange;
 
-  protected FDBBitSet(Database database, Subspace subspace, int blockSize) {
+  /**
+   * @param chunkSize bytes per chunk
+   */
+  protected FDBBitSet(Database database, Subspace subspace, int chunkSize) {
     this.database = database;
-    this.subspace = subspace;
-    this.blockSize = blockSize;
-    RoaringBitmap allSet = new RoaringBitmap();
-    allSet.add(0L, blockSize * 8L);
-    ByteBuffer byteBuffer = ByteBuffer.allocate(allSet.serializedSizeInBytes());
-    allSet.serialize(byteBuffer);
-    allSetBytes = byteBuffer.array();
+    this.chunkSize = chunkSize;
+    chunkBits = chunkSize * 8L;
+    chunks = subspace.get("chunks");
+    legacyKey = subspace.pack();
     subspaceRange = Range.startsWith(subspace.pack());
   }
 
+  /**
+   * Drops bits stored in the old single value format. Servers that wrote it could lose bits so they
+   * are rebuilt from the blocks that have versions instead of being carried over.
+   */
+  void clearLegacy(Transaction tx) {
+    tx.clear(legacyKey);
+  }
+
   public CompletableFuture<Void> set(long startBit, long endBit) {
-    return database.runAsync(tx -> {
-      FDBBitSet.this.set(tx, startBit, endBit);
+    return changeRange(startBit, endBit, true);
+  }
+
+  /**
+   * Sets the bits from startBit to endBit inclusive.
+   */
+  protected CompletableFuture<Void> set(Transaction tx, long startBit, long endBit) {
+    Map<Long, byte[]> setMasks = new TreeMap<>();
+    addRange(setMasks, startBit, endBit);
+    return update(tx, setMasks, new TreeMap<>());
+  }
+
+  /**
+   * Sets all of the bits.
+   */
+  protected CompletableFuture<Void> set(Transaction tx, MutableRoaringBitmap bits) {
+    return update(tx, bits, new MutableRoaringBitmap());
+  }
+
+  /**
+   * Sets some bits and clears others.
+   */
+  protected CompletableFuture<Void> update(Transaction tx, MutableRoaringBitmap setBits, MutableRoaringBitmap clearedBits) {
+    return update(tx, masks(setBits), masks(clearedBits));
+  }
+
+  private CompletableFuture<Void> update(Transaction tx, Map<Long, byte[]> setMasks, Map<Long, byte[]> clearMasks) {
+    Set<Long> changed = new TreeSet<>(setMasks.keySet());
+    changed.addAll(clearMasks.keySet());
+    List<CompletableFuture<Void>> updates = new ArrayList<>();
+    for (Long chunk : changed) {
+      updates.add(update(tx, chunk, setMasks.get(chunk), clearMasks.get(chunk)));
+    }
+    return CompletableFuture.allOf(updates.toArray(new CompletableFuture[updates.size()]));
+  }
+
+  /**
+   * Applies the masks to one chunk, clearing after setting.
+   */
+  private CompletableFuture<Void> update(Transaction tx, long chunk, byte[] setMask, byte[] clearMask) {
+    byte[] key = chunks.pack(Tuple.from(chunk));
+    if (setMask == null && isFull(clearMask)) {
+      tx.clear(key);
       return CompletableFuture.completedFuture(null);
-    });
+    }
+    if (setMask != null) {
+      tx.mutate(MutationType.BIT_OR, key, setMask);
+    } else {
+      // BIT_AND stores its operand when the chunk doesn't exist yet, OR-ing nothing in creates it
+      tx.mutate(MutationType.BIT_OR, key, new byte[chunkSize]);
+    }
+    if (clearMask != null) {
+      byte[] keep = new byte[chunkSize];
+      for (int i = 0; i < chunkSize; i++) {
+        keep[i] = (byte) ~clearMask[i];
+      }
+      tx.mutate(MutationType.BIT_AND, key, keep);
+    }
+    return CompletableFuture.completedFuture(null);
   }
 
-  protected void set(Transaction tx, long startBit, long endBit) {
-    // TODO: need to do something if the bitset is too big for an FDB value
-    MutableRoaringBitmap bitSet = new MutableRoaringBitmap();
-    bitSet.add(startBit, endBit + 1);
-    int capacity = bitSet.serializedSizeInBytes();
-    assert capacity <= 100_000;
-    ByteBuffer byteBuffer = ByteBuffer.allocate(capacity);
-    bitSet.serialize(byteBuffer);
-    byte[] bytes = byteBuffer.array();
-    tx.set(subspace.pack(), bytes);
+  private static boolean isFull(byte[] mask) {
+    if (mask == null) {
+      return false;
+    }
+    for (byte b : mask) {
+      if (b != (byte) 0xFF) return false;
+    }
+    return true;
   }
 
-  public CompletableFuture<Long> count() {
-    return database.runAsync(tx -> {
-      long count = 0;
-      for (KeyValue keyValue : tx.getRange(subspaceRange)) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(keyValue.getValue());
-        ImmutableRoaringBitmap bitSet = new ImmutableRoaringBitmap(byteBuffer);
-        count += bitSet.getLongCardinality();
+  private Map<Long, byte[]> masks(MutableRoaringBitmap bits) {
+    Map<Long, byte[]> masks = new TreeMap<>();
+    for (int bit : bits) {
+      long index = bit & 0xFFFFFFFFL;
+      byte[] mask = masks.computeIfAbsent(index / chunkBits, k -> new byte[chunkSize]);
+      int offset = (int) (index % chunkBits);
+      mask[offset >>> 3] |= 1 << (offset & 7);
+    }
+    return masks;
+  }
+
+  /**
+   * Adds the bits from startBit to endBit inclusive to the masks of the chunks they fall in.
+   */
+  private void addRange(Map<Long, byte[]> masks, long startBit, long endBit) {
+    for (long chunk = startBit / chunkBits; chunk <= endBit / chunkBits; chunk++) {
+      byte[] mask = masks.computeIfAbsent(chunk, k -> new byte[chunkSize]);
+      long chunkStart = chunk * chunkBits;
+      int from = (int) (Math.max(startBit, chunkStart) - chunkStart);
+      int to = (int) (Math.min(endBit + 1, chunkStart + chunkBits) - chunkStart);
+      for (int offset = from; offset < to; offset++) {
+        mask[offset >>> 3] |= 1 << (offset & 7);
       }
-      return CompletableFuture.completedFuture(count);
-    });
+    }
+  }
+
+  /**
+   * Sets or clears a range a batch of chunks per transaction so that its size doesn't matter.
+   */
+  private CompletableFuture<Void> changeRange(long startBit, long endBit, boolean set) {
+    List<CompletableFuture<Void>> batches = new ArrayList<>();
+    long batchBits = chunkBits * CHUNK_BATCH;
+    for (long start = startBit; start <= endBit; start = (start / batchBits + 1) * batchBits) {
+      long end = Math.min(endBit, (start / batchBits + 1) * batchBits - 1);
+      long batchStart = start;
+      batches.add(database.runAsync(tx -> {
+        Map<Long, byte[]> masks = new TreeMap<>();
+        addRange(masks, batchStart, end);
+        return set ? update(tx, masks, new TreeMap<>()) : update(tx, new TreeMap<>(), masks);
+      }));
+    }
+    return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]));
+  }
+
+  public CompletableFuture<MutableRoaringBitmap> get() {
+    return get(0, (1L << 32) - 1);
+  }
+
+  /**
+   * The bits set from startBit to endBit inclusive, only the chunks they fall in are read.
+   */
+  public CompletableFuture<MutableRoaringBitmap> get(long startBit, long endBit) {
+    return database.readAsync(tx -> tx.getRange(chunks.pack(Tuple.from(startBit / chunkBits)),
+            chunks.pack(Tuple.from(endBit / chunkBits + 1))).asList().thenApply(keyValues -> {
+      MutableRoaringBitmap bitSet = new MutableRoaringBitmap();
+      for (KeyValue keyValue : keyValues) {
+        long chunkStart = chunks.unpack(keyValue.getKey()).getLong(0) * chunkBits;
+        byte[] bits = keyValue.getValue();
+        for (int i = 0; i < bits.length; i++) {
+          if (bits[i] == 0) continue;
+          for (int bit = 0; bit < 8; bit++) {
+            long index = chunkStart + i * 8 + bit;
+            if ((bits[i] & (1 << bit)) != 0 && index >= startBit && index <= endBit) {
+              bitSet.add((int) index);
+            }
+          }
+        }
+      }
+      return bitSet;
+    }));
+  }
+
+  public CompletableFuture<Void> clear(long startBit, long endBit) {
+    return changeRange(startBit, endBit, false);
+  }
+
+  /**
+   * Number of bits set. Every chunk is read, a batch of chunks per transaction, so this takes time
+   * proportional to the number of chunks rather than being O(1).
+   */
+  public CompletableFuture<Long> count() {
+    return count(0, 0);
+  }
+
+  private CompletableFuture<Long> count(long firstChunk, long counted) {
+    return database.readAsync(tx -> tx.getRange(chunks.pack(Tuple.from(firstChunk)), chunks.range().end, CHUNK_BATCH).asList())
+            .thenCompose(keyValues -> {
+              long total = counted;
+              for (KeyValue keyValue : keyValues) {
+                for (byte b : keyValue.getValue()) {
+                  total += Integer.bitCount(b & 0xFF);
+                }
+              }
+              if (keyValues.size() < CHUNK_BATCH) {
+                return CompletableFuture.completedFuture(total);
+              }
+              long lastChunk = chunks.unpack(keyValues.get(keyValues.size() - 1).getKey()).getLong(0);
+              return count(lastChunk + 1, total);
+            });
   }
 
   public void clear() {
@@ -21,47 +21,161 @@ import com.apple.foundationdb.Database;
 import com.apple.foundationdb.FDB;
 import com.google.common.primitives.Longs;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.concurrent.TimeUnit.*;
 
 public class FDBStorage implements Storage {
+  private static Logger log = Logger.getLogger("NBD");
+
   private static final long _30_SECONDS = MILLISECONDS.convert(30, SECONDS);
   private static final long _1_MINUTE = MILLISECONDS.convert(1, MINUTES);
   private static final byte[] ZERO = Longs.toByteArray(0);
+  // Most bytes read into the block cache by one transaction
+  private static final int PREFETCH_BATCH = 4 * 1024 * 1024;
 
   private static final Database db = FDB.selectAPIVersion(510).open();
-  private static final ExecutorService es = Executors.newFixedThreadPool(1, r -> new Thread(r, "fdbstorage-flush"));
   private static final Timer timer = new Timer("connection-leases");
 
+  // Volumes connected on this server, shared by all of the connections to each export
+  private static final Map<String, FDBStorage> connected = new HashMap<>();
+
+  // Bytes per volume that may be acknowledged before they are durable, 0 to write through
+  private static volatile long writeBackLimit = 0;
+
+  // Microseconds small writes wait to be grouped with others into one transaction
+  private static volatile long groupCommitWindow = 0;
+
+  // Whether this server compacts volumes in the background
+  private static volatile boolean compacting = false;
+
+  // Writes of part of a block are stored as deltas
+  private static volatile boolean deltaWrites = false;
+
+  // Identifies each storage instance in the block cache, a volume connected again starts cold
+  private static final AtomicLong ids = new AtomicLong();
+
   private final FDBArray fdbArray;
-  private final LongAdder writesStarted;
-  private final LongAdder writesComplete;
   private final long size;
   private final String exportName;
+  private final long id = ids.incrementAndGet();
+  private final BlockCache cache;
+  private final GroupCommit groupCommit;
+  private final Metrics metrics;
+  // Moves whenever a write starts or finishes so reads that overlapped one don't fill the cache
+  private final AtomicLong writeEpoch = new AtomicLong();
+  private final WriteBack writeBack;
 
   private TimerTask leaseTask;
+  private int connections;
+
+  /**
+   * Enables write-back on every volume. Writes without FUA are then acknowledged
+   * as soon as they have been issued as long as less than dirtyLimit bytes are waiting to commit.
+   * Durability is only guaranteed by FLUSH or FUA.
+   */
+  public static void setWriteBack(long dirtyLimit) {
+    writeBackLimit = dirtyLimit;
+  }
+
+  /**
+   * How long small writes wait for others to share their transaction, for volumes connected after this call.
+   * With no window writes are still grouped while earlier groups are committing.
+   */
+  public static void setGroupCommit(long windowMicros) {
+    groupCommitWindow = windowMicros;
+  }
+
+  /**
+   * Stores writes of part of a block as deltas on volumes connected after this call, where the volume supports them.
+   */
+  public static void setDeltaWrites(boolean enabled) {
+    deltaWrites = enabled;
+  }
+
+  /**
+   * Starts compacting every volume in the background.
+   */
+  public static void startCompactor(int keysPerSecond) {
+    Compactor.start(db, keysPerSecond);
+    compacting = true;
+  }
+
+  public static List<String> exports() {
+    return FDBArray.list(db);
+  }
+
+  /**
+   * The array behind an export, to describe it without connecting to it.
+   */
+  static FDBArray array(String exportName) {
+    return FDBArray.open(db, exportName);
+  }
+
+  /**
+   * Size of the volume the array holds in bytes.
+   */
+  public static long size(FDBArray array) {
+    byte[] sizeBytes = array.getMetadata(NBD.SIZE_KEY);
+    if (sizeBytes == null) {
+      throw new IllegalArgumentException("Size of volume not configured");
+    }
+    return Longs.fromByteArray(sizeBytes);
+  }
+
+  /**
+   * Connects to an export. Every connection to the same export from this server shares
+   * one storage instance and lease so a flush on any of them covers writes from all of them.
+   */
+  public static FDBStorage connect(String exportName) {
+    synchronized (connected) {
+      FDBStorage storage = connected.get(exportName);
+      if (storage == null) {
+        storage = new FDBStorage(exportName);
+      }
+      storage.connect();
+      connected.put(exportName, storage);
+      return storage;
+    }
+  }
 
   public FDBStorage(String exportName) {
     this.exportName = exportName;
-    writesStarted = new LongAdder();
-    writesComplete = new LongAdder();
     fdbArray = FDBArray.open(db, exportName);
-    byte[] sizeBytes = fdbArray.getMetadata(NBD.SIZE_KEY);
-    if (sizeBytes == null) {
-      throw new IllegalArgumentException("Size of volume not configured");
+    size = size(fdbArray);
+    cache = BlockCache.get(fdbArray.getBlockSize());
+    metrics = Metrics.export(exportName);
+    groupCommit = new GroupCommit(fdbArray, groupCommitWindow, metrics);
+    fdbArray.setMetrics(metrics);
+    writeBack = new WriteBack(() -> writeBackLimit, metrics, this::invalidate);
+    if (deltaWrites) {
+      if (fdbArray.hasVersionstamps()) {
+        fdbArray.setDeltaWrites(true);
+      } else {
+        log.warning(exportName + " predates versionstamps, partial block writes will rewrite the block");
+      }
+    }
+    if (fdbArray.getDedup() && !compacting) {
+      log.warning(exportName + " deduplicates and is only reclaimed by compaction, which this server isn't running");
     }
-    size = Longs.fromByteArray(sizeBytes);
   }
 
   @Override
   public synchronized void connect() {
+    if (connections > 0) {
+      connections++;
+      return;
+    }
     byte[] lease = fdbArray.getMetadata(NBD.LEASE_KEY);
     if (lease == null || (System.currentTimeMillis() - Longs.fromByteArray(lease) > _1_MINUTE)) {
       if (leaseTask != null) leaseTask.cancel();
@@ -72,54 +186,171 @@ public class FDBStorage implements Storage {
         }
       };
       timer.schedule(leaseTask, 0, _30_SECONDS);
+      connections = 1;
     } else {
       throw new IllegalStateException("Volume " + exportName + " is already leased");
     }
   }
 
+  /**
+   * Statistics of the export, reported while it is connected.
+   */
+  Metrics metrics() {
+    return metrics;
+  }
+
   @Override
-  public synchronized void disconnect() {
-    if (leaseTask != null) {
-      leaseTask.cancel();
-      fdbArray.setMetadata(NBD.LEASE_KEY, ZERO);
-    } else {
-      throw new IllegalStateException("Not connected to " + exportName);
+  public void disconnect() {
+    synchronized (connected) {
+      synchronized (this) {
+        if (connections == 0) {
+          throw new IllegalStateException("Not connected to " + exportName);
+        }
+        if (--connections == 0) {
+          leaseTask.cancel();
+          leaseTask = null;
+          fdbArray.setMetadata(NBD.LEASE_KEY, ZERO);
+          connected.remove(exportName, this);
+          Metrics.unexport(metrics);
+          if (cache != null) {
+            cache.invalidate(id);
+            log.info(exportName + " disconnected, " + cache);
+          }
+        }
+      }
     }
   }
 
   @Override
   public CompletableFuture<Void> read(byte[] buffer, long offset) {
-    return fdbArray.read(buffer, offset);
+    return writeBack.read(buffer, offset, () -> cachedRead(buffer, offset));
   }
 
-  @Override
-  public CompletableFuture<Void> write(byte[] buffer, long offset) {
-    writesStarted.increment();
-    return fdbArray.write(buffer, offset).thenRun(() -> {
-      writesComplete.increment();
-      synchronized (writesComplete) {
-        writesComplete.notifyAll();
+  /**
+   * Serves what it can from the block cache and reads the span of blocks that missed from FDB.
+   */
+  private CompletableFuture<Void> cachedRead(byte[] buffer, long offset) {
+    if (cache == null || buffer.length == 0) {
+      return fdbArray.read(buffer, offset);
+    }
+    int blockSize = fdbArray.getBlockSize();
+    long firstBlock = offset / blockSize;
+    long lastBlock = (offset + buffer.length - 1) / blockSize;
+    long readEpoch = writeEpoch.get();
+    long firstMiss = -1;
+    long lastMiss = -1;
+    for (long block = firstBlock; block <= lastBlock; block++) {
+      long start = Math.max(offset, block * blockSize);
+      long end = Math.min(offset + buffer.length, (block + 1) * blockSize);
+      boolean hit = cache.get(id, block, buffer, (int) (start - offset), (int) (start - block * blockSize), (int) (end - start));
+      metrics.cache(hit);
+      if (!hit) {
+        if (firstMiss == -1) firstMiss = block;
+        lastMiss = block;
       }
+    }
+    if (firstMiss == -1) {
+      return CompletableFuture.completedFuture(null);
+    }
+    long missOffset = firstMiss * blockSize;
+    byte[] blocks = new byte[(int) ((lastMiss - firstMiss + 1) * blockSize)];
+    long fillBlock = firstMiss;
+    return fdbArray.read(blocks, missOffset).thenRun(() -> {
+      cache.fill(id, fillBlock, blocks, writeEpoch, readEpoch, false);
+      long start = Math.max(offset, missOffset);
+      long end = Math.min(offset + buffer.length, missOffset + blocks.length);
+      System.arraycopy(blocks, (int) (start - missOffset), buffer, (int) (start - offset), (int) (end - start));
     });
   }
 
+  /**
+   * Reads the blocks in the range that aren't cached into the cache, at most PREFETCH_BATCH per transaction.
+   */
+  @Override
+  public boolean prefetches() {
+    return cache != null;
+  }
+
+  @Override
+  public CompletableFuture<Void> prefetch(long offset, long length) {
+    long end = Math.min(offset + length, size);
+    if (cache == null || end <= offset) {
+      return CompletableFuture.completedFuture(null);
+    }
+    int blockSize = fdbArray.getBlockSize();
+    long firstBlock = offset / blockSize;
+    long lastBlock = (end - 1) / blockSize;
+    int maxBlocks = Math.max(1, PREFETCH_BATCH / blockSize);
+    long readEpoch = writeEpoch.get();
+    List<CompletableFuture<Void>> reads = new ArrayList<>();
+    long start = -1;
+    for (long block = firstBlock; block <= lastBlock + 1; block++) {
+      boolean missing = block <= lastBlock && !cache.contains(id, block);
+      if (start != -1 && (!missing || block - start == maxBlocks)) {
+        long spanStart = start;
+        byte[] blocks = new byte[(int) ((block - start) * blockSize)];
+        reads.add(fdbArray.read(blocks, spanStart * blockSize)
+                .thenRun(() -> cache.fill(id, spanStart, blocks, writeEpoch, readEpoch, true)));
+        start = -1;
+      }
+      if (missing && start == -1) {
+        start = block;
+      }
+    }
+    return CompletableFuture.allOf(reads.toArray(new CompletableFuture[reads.size()]));
+  }
+
+  /**
+   * Drops cached blocks that a write touches, both when it starts and once it has committed.
+   */
+  private void invalidate(long offset, long length) {
+    writeEpoch.incrementAndGet();
+    if (cache != null && length > 0) {
+      int blockSize = fdbArray.getBlockSize();
+      cache.invalidate(id, offset / blockSize, (offset + length - 1) / blockSize);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> write(byte[] buffer, long offset) {
+    return write(buffer, offset, false);
+  }
+
+  @Override
+  public CompletableFuture<Void> write(byte[] buffer, long offset, boolean fua) {
+    return writeBack.submit(offset, buffer.length, fua ? null : buffer, () -> groupCommit.write(buffer, offset));
+  }
+
+  @Override
+  public CompletableFuture<Void> trim(long offset, long length) {
+    return writeBack.submit(offset, length, null, () -> fdbArray.trim(offset, length));
+  }
+
+  @Override
+  public CompletableFuture<Void> writeZeroes(long offset, long length, boolean noHole) {
+    return writeBack.submit(offset, length, null, () -> fdbArray.writeZeroes(offset, length, noHole));
+  }
+
+  /**
+   * Completes once every write issued before it has committed, without holding up other volumes.
+   */
   @Override
   public CompletableFuture<Void> flush() {
-    CompletableFuture<Void> result = new CompletableFuture<>();
-    es.submit(() -> {
-      synchronized (writesComplete) {
-        long target = writesStarted.longValue();
-        while (target > writesComplete.longValue()) {
-          try {
-            writesComplete.wait();
-          } catch (InterruptedException e) {
-            // Ignore and continue looping
-          }
-        }
+    return writeBack.flush();
+  }
+
+  @Override
+  public CompletableFuture<BitSet> allocated(long offset, long length) {
+    int blockSize = fdbArray.getBlockSize();
+    long firstBlock = offset / blockSize;
+    long lastBlock = (offset + length - 1) / blockSize;
+    return fdbArray.allocated(firstBlock, lastBlock).thenApply(blocks -> {
+      BitSet allocated = new BitSet();
+      for (int block : blocks) {
+        allocated.set((int) ((block & 0xFFFFFFFFL) - firstBlock));
       }
-      result.complete(null);
+      return allocated;
     });
-    return result;
   }
 
   @Override
@@ -127,6 +358,16 @@ public class FDBStorage implements Storage {
     return size;
   }
 
+  @Override
+  public int blockSize() {
+    return fdbArray.getBlockSize();
+  }
+
+  @Override
+  public int sectorSize() {
+    return fdbArray.getSectorSize();
+  }
+
   @Override
   public long usage() {
     try {
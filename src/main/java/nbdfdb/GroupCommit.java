@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers small writes to an array into shared transactions so that concurrent writers pay for one
+ * read version and one commit between them. A group commits as soon as it reaches the byte or
+ * write budget, once its window has passed, or with no window as soon as fewer than MAX_COMMITTING
+ * groups are in flight, so that writes arriving during a commit go out together in the next one.
+ */
+class GroupCommit {
+
+  // Largest group, well under the FDB limit of 10MB per transaction
+  static final int MAX_BYTES = 1024 * 1024;
+  static final int MAX_WRITES = 256;
+  // Groups committing at once for each array
+  private static final int MAX_COMMITTING = 4;
+
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "group-commit");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final FDBArray array;
+  private final long windowMicros;
+  // Group sizes and how long each write waited before its group started committing
+  private final Metrics metrics;
+
+  private List<Write> open = new ArrayList<>();
+  private int openBytes;
+  private int committing;
+  private ScheduledFuture<?> scheduled;
+
+  private static class Write {
+    final byte[] data;
+    final long offset;
+    final long queued = System.nanoTime();
+    final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+    Write(byte[] data, long offset) {
+      this.data = data;
+      this.offset = offset;
+    }
+  }
+
+  GroupCommit(FDBArray array, long windowMicros, Metrics metrics) {
+    this.array = array;
+    this.windowMicros = windowMicros;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Completes when the group containing the write has committed. Writes larger than MAX_BYTES
+   * go straight to the array.
+   */
+  CompletableFuture<Void> write(byte[] data, long offset) {
+    if (data.length > MAX_BYTES) {
+      return array.write(data, offset);
+    }
+    Write write = new Write(data, offset);
+    List<Write> group = null;
+    synchronized (this) {
+      open.add(write);
+      openBytes += data.length;
+      if (openBytes >= MAX_BYTES || open.size() >= MAX_WRITES || (windowMicros == 0 && committing < MAX_COMMITTING)) {
+        group = take();
+      } else if (windowMicros > 0 && scheduled == null) {
+        scheduled = timer.schedule(this::expired, windowMicros, TimeUnit.MICROSECONDS);
+      }
+    }
+    if (group != null) {
+      commit(group);
+    }
+    return write.committed;
+  }
+
+  private void expired() {
+    List<Write> group;
+    synchronized (this) {
+      scheduled = null;
+      group = open.isEmpty() ? null : take();
+    }
+    if (group != null) {
+      commit(group);
+    }
+  }
+
+  // Must hold the lock
+  private List<Write> take() {
+    List<Write> group = open;
+    open = new ArrayList<>();
+    openBytes = 0;
+    committing++;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    long now = System.nanoTime();
+    metrics.grouped(group.size());
+    for (Write write : group) {
+      metrics.record(Metrics.Latency.GROUP_WAIT, now - write.queued);
+    }
+    return group;
+  }
+
+  private void commit(List<Write> group) {
+    List<byte[]> writes = new ArrayList<>(group.size());
+    long[] offsets = new long[group.size()];
+    for (int i = 0; i < group.size(); i++) {
+      writes.add(group.get(i).data);
+      offsets[i] = group.get(i).offset;
+    }
+    array.runAsync(tx -> array.write(tx, writes, offsets)).whenComplete(($, e) -> {
+      List<Write> next = null;
+      synchronized (this) {
+        committing--;
+        // Without a window whatever queued up during the commit goes next
+        if (windowMicros == 0 && !open.isEmpty()) {
+          next = take();
+        }
+      }
+      for (Write write : group) {
+        if (e == null) {
+          write.committed.complete(null);
+        } else {
+          write.committed.completeExceptionally(e);
+        }
+      }
+      if (next != null) {
+        commit(next);
+      }
+    });
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDBException;
+import com.apple.foundationdb.Transaction;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latencies and counters for the server and each export it serves. Latencies are recorded into lock
+ * free HdrHistogram recorders that are swapped for a fresh interval every INTERVAL_SECONDS, the
+ * percentiles reported are those of the last complete interval while the counts are totals. Anything
+ * recorded for an export is recorded for the server as well. Published over JMX as nbdfdb:type=Metrics
+ * and, when started, as text over HTTP on the loopback interface.
+ */
+public class Metrics implements MetricsMXBean {
+
+  private static Logger log = Logger.getLogger("NBD");
+
+  private static final int INTERVAL_SECONDS = 10;
+  // FDB error for a transaction that conflicted with another
+  private static final int NOT_COMMITTED = 1020;
+
+  public enum Latency {
+    READ, WRITE, FLUSH, TRIM, WRITE_ZEROES,
+    // Writes waiting for earlier overlapping writes to commit
+    QUEUE_WAIT,
+    // Writes waiting for their group to start committing
+    GROUP_WAIT
+  }
+
+  private static final Metrics server = new Metrics("server", null);
+  private static final Map<String, Metrics> exports = new ConcurrentHashMap<>();
+
+  private static final ScheduledExecutorService roller = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "metrics");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    roller.scheduleAtFixedRate(() -> {
+      server.roll();
+      exports.values().forEach(Metrics::roll);
+    }, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private final String name;
+  private final Metrics parent;
+  private final Map<Latency, Interval> latencies = new EnumMap<>(Latency.class);
+  // Layers of the clone chain each read touched
+  private final Interval layers = new Interval();
+  // Writes in each group committed together
+  private final Interval groupSizes = new Interval();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder conflicts = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+
+  /**
+   * A recorder and the histogram of the last interval it was rolled over from.
+   */
+  private static class Interval {
+    final Recorder recorder = new Recorder(2);
+    final LongAdder count = new LongAdder();
+    volatile Histogram last;
+
+    void record(long value) {
+      recorder.recordValue(value);
+      count.increment();
+    }
+
+    // Readers may still hold the previous interval so it isn't recycled
+    void roll() {
+      last = recorder.getIntervalHistogram();
+    }
+  }
+
+  private Metrics(String name, Metrics parent) {
+    this.name = name;
+    this.parent = parent;
+    for (Latency latency : Latency.values()) {
+      latencies.put(latency, new Interval());
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName(name));
+    } catch (JMException e) {
+      log.log(Level.WARNING, "Failed to register metrics for " + name, e);
+    }
+  }
+
+  private static ObjectName objectName(String name) throws JMException {
+    return new ObjectName("nbdfdb:type=Metrics,name=" + ObjectName.quote(name));
+  }
+
+  public static Metrics server() {
+    return server;
+  }
+
+  public static Metrics export(String exportName) {
+    return exports.computeIfAbsent(exportName, name -> new Metrics(name, server));
+  }
+
+  /**
+   * Stops reporting the statistics of an export that is no longer connected.
+   */
+  public static void unexport(Metrics metrics) {
+    if (exports.remove(metrics.name, metrics)) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metrics.name));
+      } catch (JMException e) {
+        log.log(Level.WARNING, "Failed to unregister metrics for " + metrics.name, e);
+      }
+    }
+  }
+
+  public void record(Latency latency, long nanos) {
+    latencies.get(latency).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    if (parent != null) parent.record(latency, nanos);
+  }
+
+  public void read(long bytes) {
+    bytesRead.add(bytes);
+    if (parent != null) parent.read(bytes);
+  }
+
+  public void written(long bytes) {
+    bytesWritten.add(bytes);
+    if (parent != null) parent.written(bytes);
+  }
+
+  public void layers(int depth) {
+    layers.record(depth);
+    if (parent != null) parent.layers(depth);
+  }
+
+  public void grouped(int writes) {
+    groupSizes.record(writes);
+    if (parent != null) parent.grouped(writes);
+  }
+
+  public void cache(boolean hit) {
+    (hit ? cacheHits : cacheMisses).increment();
+    if (parent != null) parent.cache(hit);
+  }
+
+  private void retried(Throwable e) {
+    retries.increment();
+    if (e instanceof FDBException && ((FDBException) e).getCode() == NOT_COMMITTED) {
+      conflicts.increment();
+    }
+    if (parent != null) parent.retried(e);
+  }
+
+  /**
+   * Runs the transaction like Database.runAsync, counting the retries and the conflicts that caused them.
+   */
+  public <T> CompletableFuture<T> run(Database database, Function<? super Transaction, CompletableFuture<T>> retryable) {
+    return attempt(database.createTransaction(), retryable);
+  }
+
+  /**
+   * Each attempt closes the transaction it ran in once it is done with it. A retry runs in the
+   * transaction onError hands back, which the bindings may make a new one.
+   */
+  private <T> CompletableFuture<T> attempt(Transaction tx, Function<? super Transaction, CompletableFuture<T>> retryable) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    CompletableFuture.completedFuture(tx).thenCompose(retryable)
+            .thenCompose(value -> tx.commit().thenApply($ -> value))
+            .whenComplete((value, e) -> {
+              if (e == null) {
+                tx.close();
+                result.complete(value);
+                return;
+              }
+              Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+              // onError fails with the error when it can't be retried
+              tx.onError(cause).whenComplete((retry, fatal) -> {
+                if (fatal != null) {
+                  tx.close();
+                  result.completeExceptionally(cause);
+                } else {
+                  if (retry != tx) {
+                    tx.close();
+                  }
+                  retried(cause);
+                  attempt(retry, retryable).whenComplete((retried, error) -> {
+                    if (error == null) {
+                      result.complete(retried);
+                    } else {
+                      result.completeExceptionally(error);
+                    }
+                  });
+                }
+              });
+            });
+    return result;
+  }
+
+  private void roll() {
+    latencies.values().forEach(Interval::roll);
+    layers.roll();
+    groupSizes.roll();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Counts and totals, then the mean, p50, p99 and max of each latency in microseconds over the last interval.
+   */
+  @Override
+  public Map<String, Double> getStatistics() {
+    Map<String, Double> statistics = new LinkedHashMap<>();
+    statistics.put("bytes_read", (double) bytesRead.sum());
+    statistics.put("bytes_written", (double) bytesWritten.sum());
+    statistics.put("transaction_retries", (double) retries.sum());
+    statistics.put("transaction_conflicts", (double) conflicts.sum());
+    long hits = cacheHits.sum();
+    long misses = cacheMisses.sum();
+    statistics.put("cache_hits", (double) hits);
+    statistics.put("cache_misses", (double) misses);
+    statistics.put("cache_hit_rate", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+    for (Map.Entry<Latency, Interval> entry : latencies.entrySet()) {
+      interval(statistics, entry.getKey().name().toLowerCase() + "_us", entry.getValue());
+    }
+    interval(statistics, "layers", layers);
+    interval(statistics, "group_size", groupSizes);
+    return statistics;
+  }
+
+  private static void interval(Map<String, Double> statistics, String prefix, Interval interval) {
+    statistics.put(prefix + "_count", (double) interval.count.sum());
+    Histogram last = interval.last;
+    if (last != null && last.getTotalCount() > 0) {
+      statistics.put(prefix + "_mean", last.getMean());
+      statistics.put(prefix + "_p50", (double) last.getValueAtPercentile(50));
+      statistics.put(prefix + "_p99", (double) last.getValueAtPercentile(99));
+      statistics.put(prefix + "_max", (double) last.getMaxValue());
+    }
+  }
+
+  /**
+   * Every statistic of the server and its exports, one per line in the Prometheus text format.
+   */
+  public static String text() {
+    StringBuilder text = new StringBuilder();
+    append(text, server);
+    exports.values().forEach(metrics -> append(text, metrics));
+    return text.toString();
+  }
+
+  private static void append(StringBuilder text, Metrics metrics) {
+    String label = metrics.parent == null ? "" : "{export=\"" + metrics.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    for (Map.Entry<String, Double> statistic : metrics.getStatistics().entrySet()) {
+      text.append("nbdfdb_").append(statistic.getKey()).append(label).append(' ').append(statistic.getValue()).append('\n');
+    }
+  }
+
+  /**
+   * Serves the statistics at /metrics on the loopback interface.
+   */
+  public static void serve(int port) throws IOException {
+    HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    http.createContext("/metrics", exchange -> {
+      byte[] body = text().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "metrics-http");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    http.start();
+    log.info("Serving metrics on http://localhost:" + port + "/metrics");
+  }
+}
@@ -23,6 +23,10 @@ import com.google.common.primitives.Longs;
 public class NBD {
   public static final int NBD_OK              = 0       ; /* OK */
   public static final byte[] NBD_OK_BYTES     = new byte[4];
+  public static final int NBD_EPERM           = 1       ; /* Operation not permitted */
+  public static final int NBD_EIO             = 5       ; /* Input/output error */
+  public static final int NBD_EINVAL          = 22      ; /* Invalid argument */
+  public static final int NBD_ENOSPC          = 28      ; /* No space left on device */
 
   public static final int NBD_FLAG_HAS_FLAGS  = (1 << 0);	/* Flags are there */
   public static final int NBD_FLAG_READ_ONLY  =	(1 << 1);	/* Device is read-only */
@@ -30,11 +34,40 @@ public class NBD {
   public static final int NBD_FLAG_SEND_FUA	  = (1 << 3);	/* Send FUA (Force Unit Access) */
   public static final int NBD_FLAG_ROTATIONAL =	(1 << 4);	/* Use elevator algorithm - rotational media */
   public static final int NBD_FLAG_SEND_TRIM	= (1 << 5);	/* Send TRIM (discard) */
+  public static final int NBD_FLAG_SEND_WRITE_ZEROES = (1 << 6); /* Send WRITE_ZEROES */
+  public static final int NBD_FLAG_CAN_MULTI_CONN = (1 << 8); /* Multiple connections share a cache */
+  public static final int NBD_FLAG_SEND_CACHE = (1 << 10); /* Send CACHE (prefetch) */
+
+  // Request flags
+  public static final int NBD_CMD_FLAG_FUA     = (1 << 0); /* Force Unit Access */
+  public static final int NBD_CMD_FLAG_NO_HOLE = (1 << 1); /* Zeroed ranges must stay allocated */
+  public static final int NBD_CMD_FLAG_REQ_ONE = (1 << 3); /* Only one block status descriptor */
+
+  // Handshake flags
+  public static final int NBD_FLAG_FIXED_NEWSTYLE   = (1 << 0); /* Server supports fixed newstyle */
+  public static final int NBD_FLAG_NO_ZEROES        = (1 << 1); /* Server can omit the 124 zero bytes */
+  public static final int NBD_FLAG_C_FIXED_NEWSTYLE = (1 << 0); /* Client understands fixed newstyle */
+  public static final int NBD_FLAG_C_NO_ZEROES      = (1 << 1); /* Client does not want the zero bytes */
 
   public static final int NBD_REQUEST_MAGIC = 0x25609513;
   public static final byte[] NBD_REQUEST_MAGIC_BYTES = Ints.toByteArray(NBD_REQUEST_MAGIC);
   public static final int NBD_REPLY_MAGIC = 0x67446698;
   public static final byte[] NBD_REPLY_MAGIC_BYTES = Ints.toByteArray(NBD_REPLY_MAGIC);
+  public static final int NBD_STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+
+  // Structured reply chunks
+  public static final short NBD_REPLY_FLAG_DONE = (1 << 0);
+  public static final short NBD_REPLY_TYPE_NONE = 0;
+  public static final short NBD_REPLY_TYPE_OFFSET_DATA = 1;
+  public static final short NBD_REPLY_TYPE_OFFSET_HOLE = 2;
+  public static final short NBD_REPLY_TYPE_BLOCK_STATUS = 5;
+  public static final short NBD_REPLY_TYPE_ERROR = (short) ((1 << 15) + 1);
+
+  // base:allocation is the only metadata context we support
+  public static final String NBD_META_CONTEXT_BASE_ALLOCATION = "base:allocation";
+  public static final int NBD_META_CONTEXT_BASE_ALLOCATION_ID = 1;
+  public static final int NBD_STATE_HOLE = (1 << 0);
+  public static final int NBD_STATE_ZERO = (1 << 1);
 
   public static final byte[] INIT_PASSWD = "NBDMAGIC".getBytes();
 
@@ -56,10 +89,39 @@ public class NBD {
     DISCONNECT,
     FLUSH,
     TRIM,
-    CACHE
+    CACHE,
+    WRITE_ZEROES,
+    BLOCK_STATUS
   }
 
   public static final int NBD_OPT_EXPORT_NAME = 1;
   public static final int NBD_OPT_ABORT = 2;
   public static final int NBD_OPT_LIST = 3;
+  public static final int NBD_OPT_INFO = 6;
+  public static final int NBD_OPT_GO = 7;
+  public static final int NBD_OPT_STRUCTURED_REPLY = 8;
+  public static final int NBD_OPT_LIST_META_CONTEXT = 9;
+  public static final int NBD_OPT_SET_META_CONTEXT = 10;
+
+  // Option replies
+  public static final int NBD_REP_ACK = 1;
+  public static final int NBD_REP_SERVER = 2;
+  public static final int NBD_REP_INFO = 3;
+  public static final int NBD_REP_META_CONTEXT = 4;
+  public static final int NBD_REP_FLAG_ERROR = (1 << 31);
+  public static final int NBD_REP_ERR_UNSUP = NBD_REP_FLAG_ERROR | 1;
+  public static final int NBD_REP_ERR_POLICY = NBD_REP_FLAG_ERROR | 2;
+  public static final int NBD_REP_ERR_INVALID = NBD_REP_FLAG_ERROR | 3;
+  public static final int NBD_REP_ERR_UNKNOWN = NBD_REP_FLAG_ERROR | 6;
+
+  // Information types for NBD_REP_INFO
+  public static final short NBD_INFO_EXPORT = 0;
+  public static final short NBD_INFO_NAME = 1;
+  public static final short NBD_INFO_DESCRIPTION = 2;
+  public static final short NBD_INFO_BLOCK_SIZE = 3;
+
+  // Largest request payload we advertise, writes are split into several FDB transactions
+  public static final int NBD_MAX_PAYLOAD = 32 * 1024 * 1024;
+  // Largest option payload we will accept during the handshake
+  public static final int NBD_MAX_OPTION = 64 * 1024;
 }
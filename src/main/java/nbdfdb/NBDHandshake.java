@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * Fixed newstyle option haggling, shared by the blocking and the netty servers. The
+ * transport feeds in one option at a time and this writes the replies. Options may touch
+ * FDB so callers must not run them on an event loop.
+ */
+class NBDHandshake {
+
+  private static Logger log = Logger.getLogger("NBD");
+
+  private int clientFlags;
+  private boolean structuredReplies;
+  private boolean allocationContext;
+  private NBDVolumeServer volume;
+
+  static void writeGreeting(DataOutput out) throws IOException {
+    out.write(INIT_PASSWD);
+    out.write(OPTS_MAGIC_BYTES);
+    out.writeShort(NBD_FLAG_FIXED_NEWSTYLE | NBD_FLAG_NO_ZEROES);
+  }
+
+  /**
+   * Flags the client sent after the greeting. Flags we don't know mean the client expects behaviour
+   * we can't provide, so the connection is refused.
+   */
+  void clientFlags(int clientFlags) {
+    int unknown = clientFlags & ~(NBD_FLAG_C_FIXED_NEWSTYLE | NBD_FLAG_C_NO_ZEROES);
+    if (unknown != 0) {
+      throw new IllegalArgumentException("Unknown client flags: " + Integer.toHexString(unknown));
+    }
+    this.clientFlags = clientFlags;
+  }
+
+  /**
+   * The mounted volume once the client has chosen an export, null if the client aborted.
+   */
+  NBDVolumeServer volume() {
+    return volume;
+  }
+
+  /**
+   * Handles a single option.
+   *
+   * @return true when the handshake is over and transmission begins or the connection should close
+   */
+  boolean option(int opt, byte[] data, DataOutput out) throws IOException {
+    switch (opt) {
+      case NBD_OPT_EXPORT_NAME: {
+        String exportName = new String(data, Charsets.UTF_8);
+        log.info("Connecting client to " + exportName);
+        // There is no way to report an error for this option, failures close the connection
+        volume = mount(exportName);
+        Storage storage = volume.storage();
+        out.writeLong(storage.size());
+        out.writeShort(NBDVolumeServer.transmissionFlags());
+        if ((clientFlags & NBD_FLAG_C_NO_ZEROES) == 0) {
+          out.write(EMPTY_124);
+        }
+        return true;
+      }
+      case NBD_OPT_ABORT:
+        writeOptionReply(out, opt, NBD_REP_ACK, null);
+        return true;
+      case NBD_OPT_LIST:
+        if (data.length != 0) {
+          writeOptionReply(out, opt, NBD_REP_ERR_INVALID, null);
+        } else {
+          for (String exportName : FDBStorage.exports()) {
+            byte[] name = exportName.getBytes(Charsets.UTF_8);
+            ByteBuffer reply = ByteBuffer.allocate(4 + name.length).putInt(name.length).put(name);
+            writeOptionReply(out, opt, NBD_REP_SERVER, reply.array());
+          }
+          writeOptionReply(out, opt, NBD_REP_ACK, null);
+        }
+        return false;
+      case NBD_OPT_INFO:
+      case NBD_OPT_GO:
+        return info(opt, data, out);
+      case NBD_OPT_STRUCTURED_REPLY:
+        if (data.length != 0) {
+          writeOptionReply(out, opt, NBD_REP_ERR_INVALID, null);
+        } else {
+          structuredReplies = true;
+          writeOptionReply(out, opt, NBD_REP_ACK, null);
+        }
+        return false;
+      case NBD_OPT_LIST_META_CONTEXT:
+      case NBD_OPT_SET_META_CONTEXT:
+        metaContext(opt, data, out);
+        return false;
+      default:
+        if ((clientFlags & NBD_FLAG_C_FIXED_NEWSTYLE) == 0) {
+          // Old style clients don't understand errors
+          throw new IllegalArgumentException("Unsupported option: " + opt);
+        }
+        writeOptionReply(out, opt, NBD_REP_ERR_UNSUP, null);
+        return false;
+    }
+  }
+
+  private boolean info(int opt, byte[] data, DataOutput out) throws IOException {
+    String exportName;
+    Set<Short> requests = new HashSet<>();
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      exportName = new String(readField(in), Charsets.UTF_8);
+      int count = in.readUnsignedShort();
+      for (int i = 0; i < count; i++) {
+        requests.add(in.readShort());
+      }
+      if (in.available() != 0) {
+        throw new IOException("Trailing data");
+      }
+    } catch (IOException e) {
+      writeOptionReply(out, opt, NBD_REP_ERR_INVALID, null);
+      return false;
+    }
+
+    long size;
+    int blockSize;
+    int sectorSize;
+    NBDVolumeServer mounted = null;
+    try {
+      if (opt == NBD_OPT_GO) {
+        log.info("Connecting client to " + exportName);
+        mounted = mount(exportName);
+        Storage storage = mounted.storage();
+        size = storage.size();
+        blockSize = storage.blockSize();
+        sectorSize = storage.sectorSize();
+      } else {
+        // Only the metadata is needed, a storage would set up group commit, the cache and metrics for nothing
+        FDBArray array = FDBStorage.array(exportName);
+        size = FDBStorage.size(array);
+        blockSize = array.getBlockSize();
+        sectorSize = array.getSectorSize();
+      }
+    } catch (IllegalStateException e) {
+      log.log(Level.WARNING, "Refusing " + exportName, e);
+      writeOptionReply(out, opt, NBD_REP_ERR_POLICY, null);
+      return false;
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Unknown export " + exportName, e);
+      writeOptionReply(out, opt, NBD_REP_ERR_UNKNOWN, null);
+      return false;
+    }
+
+    // NBD_INFO_EXPORT is mandatory
+    ByteBuffer export = ByteBuffer.allocate(12)
+            .putShort(NBD_INFO_EXPORT)
+            .putLong(size)
+            .putShort((short) NBDVolumeServer.transmissionFlags());
+    writeOptionReply(out, opt, NBD_REP_INFO, export.array());
+
+    if (requests.contains(NBD_INFO_NAME)) {
+      byte[] name = exportName.getBytes(Charsets.UTF_8);
+      ByteBuffer info = ByteBuffer.allocate(2 + name.length).putShort(NBD_INFO_NAME).put(name);
+      writeOptionReply(out, opt, NBD_REP_INFO, info.array());
+    }
+
+    // Always advertise block sizes so that clients address sectors and prefer whole storage blocks
+    int minimum, preferred;
+    if (Integer.bitCount(blockSize) == 1 && Integer.bitCount(sectorSize) == 1) {
+      minimum = Math.min(sectorSize, 64 * 1024);
+      preferred = Math.max(blockSize, 4096);
+    } else {
+      minimum = 1;
+      preferred = 4096;
+    }
+    ByteBuffer sizes = ByteBuffer.allocate(14)
+            .putShort(NBD_INFO_BLOCK_SIZE)
+            .putInt(minimum)
+            .putInt(Math.min(preferred, NBD_MAX_PAYLOAD))
+            .putInt(NBD_MAX_PAYLOAD);
+    writeOptionReply(out, opt, NBD_REP_INFO, sizes.array());
+
+    writeOptionReply(out, opt, NBD_REP_ACK, null);
+    if (mounted != null) {
+      volume = mounted;
+      return true;
+    }
+    return false;
+  }
+
+  private NBDVolumeServer mount(String exportName) throws IOException {
+    NBDVolumeServer mounted = new NBDVolumeServer(exportName);
+    mounted.negotiated(structuredReplies, allocationContext);
+    return mounted;
+  }
+
+  private void metaContext(int opt, byte[] data, DataOutput out) throws IOException {
+    boolean set = opt == NBD_OPT_SET_META_CONTEXT;
+    if (set && !structuredReplies) {
+      writeOptionReply(out, opt, NBD_REP_ERR_INVALID, null);
+      return;
+    }
+    boolean allocation = false;
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      readField(in);
+      int count = in.readInt();
+      // Listing without queries returns everything we have
+      allocation = count == 0 && !set;
+      for (int i = 0; i < count; i++) {
+        String context = new String(readField(in), Charsets.UTF_8);
+        allocation |= context.equals(NBD_META_CONTEXT_BASE_ALLOCATION) || (!set && context.equals("base:"));
+      }
+      if (in.available() != 0) {
+        throw new IOException("Trailing data");
+      }
+    } catch (IOException e) {
+      writeOptionReply(out, opt, NBD_REP_ERR_INVALID, null);
+      return;
+    }
+    if (allocation) {
+      byte[] name = NBD_META_CONTEXT_BASE_ALLOCATION.getBytes(Charsets.UTF_8);
+      ByteBuffer context = ByteBuffer.allocate(4 + name.length).putInt(NBD_META_CONTEXT_BASE_ALLOCATION_ID).put(name);
+      writeOptionReply(out, opt, NBD_REP_META_CONTEXT, context.array());
+    }
+    if (set) {
+      allocationContext = allocation;
+    }
+    writeOptionReply(out, opt, NBD_REP_ACK, null);
+  }
+
+  /**
+   * Reads a field prefixed with its 32 bit length, which is checked against what is left of the
+   * option before anything is allocated for it.
+   */
+  private static byte[] readField(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Field length " + length + " runs past the end of the option");
+    }
+    byte[] field = new byte[length];
+    in.readFully(field);
+    return field;
+  }
+
+  private static void writeOptionReply(DataOutput out, int opt, int type, byte[] data) throws IOException {
+    out.write(REP_MAGIC_BYTES);
+    out.writeInt(opt);
+    out.writeInt(type);
+    if (data == null) {
+      out.writeInt(0);
+    } else {
+      out.writeInt(data.length);
+      out.write(data);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * Frames handshake options and hands them to NBDHandshake. Options can talk to FDB
+ * synchronously so they are processed off the event loop. Once a volume is mounted
+ * this decoder replaces itself with the transmission phase handlers.
+ */
+class NBDHandshakeDecoder extends ByteToMessageDecoder {
+
+  private static Logger log = Logger.getLogger("NBD");
+  private static final ExecutorService options = Executors.newCachedThreadPool(r -> new Thread(r, "nbd-handshake"));
+
+  // magic + option + length
+  private static final int OPTION_HEADER_LENGTH = 16;
+
+  private enum State {
+    CLIENT_FLAGS,
+    OPTIONS,
+    PROCESSING
+  }
+
+  private final NBDHandshake handshake = new NBDHandshake();
+  private State state = State.CLIENT_FLAGS;
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    InetSocketAddress remoteAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+    log.info("Client connected from: " + remoteAddress.getAddress().getHostAddress());
+    ByteBuf greeting = ctx.alloc().buffer();
+    NBDHandshake.writeGreeting(new ByteBufOutputStream(greeting));
+    ctx.writeAndFlush(greeting);
+    super.channelActive(ctx);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    switch (state) {
+      case CLIENT_FLAGS:
+        if (in.readableBytes() < 4) return;
+        handshake.clientFlags(in.readInt());
+        state = State.OPTIONS;
+        // Fall through to any option that arrived with the flags
+      case OPTIONS: {
+        if (in.readableBytes() < OPTION_HEADER_LENGTH) return;
+        int start = in.readerIndex();
+        long magic = in.getLong(start);
+        if (magic != OPTS_MAGIC) {
+          throw new IllegalArgumentException("Invalid magic number for option: " + magic);
+        }
+        int length = in.getInt(start + 12);
+        if (length < 0 || length > NBD_MAX_OPTION) {
+          throw new IllegalArgumentException("Option too long: " + length);
+        }
+        if (in.readableBytes() < OPTION_HEADER_LENGTH + length) return;
+        in.skipBytes(8);
+        int opt = in.readInt();
+        in.skipBytes(4);
+        byte[] bytes = new byte[length];
+        in.readBytes(bytes);
+        process(ctx, opt, bytes);
+        break;
+      }
+      case PROCESSING:
+        // Wait for the current option to finish before reading the next one
+        break;
+    }
+  }
+
+  private void process(ChannelHandlerContext ctx, int opt, byte[] bytes) {
+    state = State.PROCESSING;
+    ByteBuf reply = ctx.alloc().buffer();
+    CompletableFuture.supplyAsync(() -> {
+      try {
+        return handshake.option(opt, bytes, new ByteBufOutputStream(reply));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }, options).whenComplete((done, e) -> ctx.executor().execute(() -> {
+      if (e != null) {
+        log.log(Level.SEVERE, "Failed to connect", e);
+        reply.release();
+        ctx.close();
+        return;
+      }
+      NBDVolumeServer volume = handshake.volume();
+      if (!ctx.channel().isActive()) {
+        reply.release();
+        if (volume != null) volume.disconnect();
+        return;
+      }
+      ctx.writeAndFlush(reply);
+      if (!done) {
+        // Decode anything the client sent while we were busy
+        state = State.OPTIONS;
+        ctx.pipeline().fireChannelRead(Unpooled.EMPTY_BUFFER);
+      } else if (volume == null) {
+        log.info("Client aborted");
+        ctx.close();
+      } else {
+        log.info("Volume mounted");
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addLast("requests", new NBDRequestDecoder());
+        pipeline.addLast("volume", new NBDVolumeHandler(volume));
+        // Any bytes already buffered are handed to the request decoder
+        pipeline.remove(this);
+      }
+    }));
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    log.log(Level.SEVERE, "Failed to connect", cause);
+    ctx.close();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.util.logging.Logger;
+
+/**
+ * Event loop based server. Every connection is a small netty pipeline instead of a
+ * thread blocked on the socket:
+ *
+ * NBDReplyEncoder <- NBDHandshakeDecoder, which once an export is chosen is replaced by
+ * NBDRequestDecoder -> NBDVolumeHandler.
+ */
+public class NBDNettyServer {
+
+  private static Logger log = Logger.getLogger("NBD");
+
+  private final int port;
+
+  public NBDNettyServer(int port) {
+    this.port = port;
+  }
+
+  public void run() throws InterruptedException {
+    EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+    EventLoopGroup workerGroup = new NioEventLoopGroup();
+    try {
+      ServerBootstrap bootstrap = new ServerBootstrap()
+              .group(bossGroup, workerGroup)
+              .channel(NioServerSocketChannel.class)
+              .childOption(ChannelOption.TCP_NODELAY, true)
+              .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                  ch.pipeline().addLast("encoder", new NBDReplyEncoder());
+                  ch.pipeline().addLast("handshake", new NBDHandshakeDecoder());
+                }
+              });
+      log.info("Listening for nbd-client connections");
+      bootstrap.bind(port).sync().channel().closeFuture().sync();
+    } finally {
+      bossGroup.shutdownGracefully();
+      workerGroup.shutdownGracefully();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * A simple reply to a transmission phase request.
+ */
+class NBDReply {
+  final int error;
+  final long handle;
+  final byte[] data;
+
+  NBDReply(long handle) {
+    this(handle, NBD_OK, null);
+  }
+
+  NBDReply(long handle, byte[] data) {
+    this(handle, NBD_OK, data);
+  }
+
+  NBDReply(long handle, int error, byte[] data) {
+    this.error = error;
+    this.handle = handle;
+    this.data = data;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.write(NBD_REPLY_MAGIC_BYTES);
+    out.writeInt(error);
+    out.writeLong(handle);
+    if (data != null) {
+      out.write(data);
+    }
+  }
+}
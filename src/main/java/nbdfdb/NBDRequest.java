@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.google.common.primitives.UnsignedInteger;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * A transmission phase request. Shared by the blocking and the netty servers.
+ */
+class NBDRequest {
+  // magic + flags + type + handle + offset + length
+  static final int HEADER_LENGTH = 28;
+
+  final int flags;
+  final Command type;
+  final long handle;
+  final long offset;
+  final int length;
+  final byte[] data;
+
+  NBDRequest(int flags, Command type, long handle, long offset, int length, byte[] data) {
+    this.flags = flags;
+    this.type = type;
+    this.handle = handle;
+    this.offset = offset;
+    this.length = length;
+    this.data = data;
+  }
+
+  /**
+   * Reads the header and, for writes, the payload of the next request.
+   */
+  static NBDRequest read(DataInput in) throws IOException {
+    int requestMagic = in.readInt();
+    if (requestMagic != NBD_REQUEST_MAGIC) {
+      throw new IllegalArgumentException("Invalid magic number for request: " + requestMagic);
+    }
+    int flags = in.readUnsignedShort();
+    int type = in.readUnsignedShort();
+    if (type >= Command.values().length) {
+      throw new IllegalArgumentException("Unknown request type: " + type);
+    }
+    Command requestType = Command.values()[type];
+    long handle = in.readLong();
+    long offset = in.readLong();
+    UnsignedInteger requestLength = UnsignedInteger.fromIntBits(in.readInt());
+    if (requestLength.longValue() > Integer.MAX_VALUE) {
+      // We could ultimately support this but it isn't common by any means
+      throw new IllegalArgumentException("Failed to read, length too long: " + requestLength);
+    }
+    int length = requestLength.intValue();
+    checkPayload(type, length);
+    byte[] data = null;
+    if (requestType == Command.WRITE) {
+      data = new byte[length];
+      in.readFully(data);
+    }
+    return new NBDRequest(flags, requestType, handle, offset, length, data);
+  }
+
+  /**
+   * Rejects a write whose payload is larger than the maximum block size we advertise before anything
+   * is buffered for it. There is no way to skip the payload so the connection has to be closed.
+   */
+  static void checkPayload(int type, int length) {
+    if (payloadLength(type, length) > NBD_MAX_PAYLOAD) {
+      throw new IllegalArgumentException("Write payload of " + length + " bytes is larger than " + NBD_MAX_PAYLOAD);
+    }
+  }
+
+  /**
+   * How many payload bytes follow the header for this request type.
+   */
+  static int payloadLength(int type, int length) {
+    return type == Command.WRITE.ordinal() ? length : 0;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Frames transmission phase requests. Waits until the header and any payload have
+ * arrived so that decoding never blocks.
+ */
+class NBDRequestDecoder extends ByteToMessageDecoder {
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    while (in.readableBytes() >= NBDRequest.HEADER_LENGTH) {
+      int start = in.readerIndex();
+      int type = in.getUnsignedShort(start + 6);
+      int length = in.getInt(start + 24);
+      if (length < 0) {
+        throw new IllegalArgumentException("Failed to read, length too long: " + (length & 0xFFFFFFFFL));
+      }
+      NBDRequest.checkPayload(type, length);
+      if (in.readableBytes() < NBDRequest.HEADER_LENGTH + NBDRequest.payloadLength(type, length)) {
+        return;
+      }
+      out.add(NBDRequest.read(new ByteBufInputStream(in)));
+    }
+  }
+}
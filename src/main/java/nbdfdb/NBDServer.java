@@ -17,7 +17,7 @@
 
 package nbdfdb;
 
-import com.google.common.base.Charsets;
+import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
 
 import java.io.BufferedOutputStream;
@@ -41,7 +41,50 @@ public class NBDServer {
   @Argument(alias = "p", description = "The server port to listen on for connections")
   private static Integer port = 10809;
 
+  @Argument(alias = "e", description = "Serve all connections from a few netty event loops instead of a thread per connection")
+  private static Boolean eventLoop = false;
+
+  @Argument(alias = "w", description = "Megabytes per volume acknowledged before they are durable, 0 writes through")
+  private static Integer writeBack = 0;
+
+  @Argument(alias = "c", description = "Megabytes of off-heap memory for caching blocks, per block size in use, 0 (the default) disables the cache and with it readahead")
+  private static Integer cache = 0;
+
+  @Argument(description = "How the block cache picks blocks to evict, clock or lru")
+  private static String cacheEviction = "clock";
+
+  @Argument(alias = "g", description = "Microseconds small writes wait to share a transaction with others")
+  private static Integer groupCommit = 0;
+
+  @Argument(description = "Block versions per second the background compactor may scan, 0 (the default) to disable it")
+  private static Integer compact = 0;
+
+  @Argument(alias = "d", description = "Store writes of part of a block as deltas merged on read instead of rewriting the block")
+  private static Boolean deltas = false;
+
+  @Argument(alias = "m", description = "Port serving metrics as text on localhost, 0 to only publish them over JMX")
+  private static Integer metrics = 0;
+
   public static void main(String[] args) throws IOException {
+    Args.parseOrExit(NBDServer.class, args);
+    FDBStorage.setWriteBack(writeBack * 1024L * 1024L);
+    FDBStorage.setGroupCommit(groupCommit);
+    FDBStorage.setDeltaWrites(deltas);
+    if (metrics > 0) {
+      Metrics.serve(metrics);
+    }
+    if (compact > 0) {
+      FDBStorage.startCompactor(compact);
+    }
+    BlockCache.configure(cache * 1024L * 1024L, BlockCache.Eviction.valueOf(cacheEviction.toUpperCase()));
+    if (eventLoop) {
+      try {
+        new NBDNettyServer(port).run();
+      } catch (InterruptedException e) {
+        throw new IOException("Server interrupted", e);
+      }
+      return;
+    }
     ExecutorService es = Executors.newCachedThreadPool();
     log.info("Listening for nbd-client connections");
     ServerSocket ss = new ServerSocket(port);
@@ -54,26 +97,36 @@ public class NBDServer {
           DataInputStream in = new DataInputStream(accept.getInputStream());
           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(accept.getOutputStream()));
 
-          out.write(INIT_PASSWD);
-          out.write(OPTS_MAGIC_BYTES);
-          out.writeShort(NBD_FLAG_HAS_FLAGS);
+          NBDHandshake handshake = new NBDHandshake();
+          NBDHandshake.writeGreeting(out);
           out.flush();
 
-          // TODO: interpret the client flags.
-          int clientFlags = in.readInt();
-          long magic = in.readLong();
-          int opt = in.readInt();
-          if (opt != NBD_OPT_EXPORT_NAME) {
-            throw new RuntimeException("We support only EXPORT options");
+          handshake.clientFlags(in.readInt());
+          boolean done;
+          do {
+            long magic = in.readLong();
+            if (magic != OPTS_MAGIC) {
+              throw new IllegalArgumentException("Invalid magic number for option: " + magic);
+            }
+            int opt = in.readInt();
+            int length = in.readInt();
+            if (length < 0 || length > NBD_MAX_OPTION) {
+              throw new IllegalArgumentException("Option too long: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            done = handshake.option(opt, bytes, out);
+            out.flush();
+          } while (!done);
+
+          NBDVolumeServer nbdVolumeServer = handshake.volume();
+          if (nbdVolumeServer == null) {
+            log.info("Client aborted");
+            accept.close();
+            return;
           }
-          int length = in.readInt();
-          byte[] bytes = new byte[length];
-          in.readFully(bytes);
-          String exportName = new String(bytes, Charsets.UTF_8);
-          log.info("Connecting client to " + exportName);
-          NBDVolumeServer nbdVolumeServer = new NBDVolumeServer(exportName, in, out);
           log.info("Volume mounted");
-          nbdVolumeServer.run();
+          nbdVolumeServer.serve(in, out);
         } catch (Throwable e) {
           log.log(Level.SEVERE, "Failed to connect", e);
           try {
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import com.google.common.primitives.Longs;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * A reply made of structured reply chunks, used once the client has negotiated
+ * NBD_OPT_STRUCTURED_REPLY. All chunks are written together and the last one is
+ * flagged as done.
+ */
+class NBDStructuredReply extends NBDReply {
+
+  private static class Chunk {
+    final short type;
+    final byte[] header;
+    final byte[] data;
+    final int dataOffset;
+    final int dataLength;
+
+    Chunk(short type, byte[] header, byte[] data, int dataOffset, int dataLength) {
+      this.type = type;
+      this.header = header;
+      this.data = data;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+    }
+  }
+
+  private final List<Chunk> chunks = new ArrayList<>();
+
+  NBDStructuredReply(long handle) {
+    super(handle);
+  }
+
+  static NBDStructuredReply error(long handle, int error) {
+    NBDStructuredReply reply = new NBDStructuredReply(handle);
+    // error + message length, we don't send a message
+    byte[] header = ByteBuffer.allocate(6).putInt(error).putShort((short) 0).array();
+    reply.chunks.add(new Chunk(NBD_REPLY_TYPE_ERROR, header, null, 0, 0));
+    return reply;
+  }
+
+  NBDStructuredReply data(long offset, byte[] data, int dataOffset, int dataLength) {
+    chunks.add(new Chunk(NBD_REPLY_TYPE_OFFSET_DATA, Longs.toByteArray(offset), data, dataOffset, dataLength));
+    return this;
+  }
+
+  NBDStructuredReply hole(long offset, int length) {
+    byte[] header = ByteBuffer.allocate(12).putLong(offset).putInt(length).array();
+    chunks.add(new Chunk(NBD_REPLY_TYPE_OFFSET_HOLE, header, null, 0, 0));
+    return this;
+  }
+
+  /**
+   * @param descriptors pairs of extent length and status flags
+   */
+  NBDStructuredReply blockStatus(int contextId, int[] descriptors) {
+    ByteBuffer header = ByteBuffer.allocate(4 + descriptors.length * 4).putInt(contextId);
+    for (int descriptor : descriptors) {
+      header.putInt(descriptor);
+    }
+    chunks.add(new Chunk(NBD_REPLY_TYPE_BLOCK_STATUS, header.array(), null, 0, 0));
+    return this;
+  }
+
+  @Override
+  void write(DataOutput out) throws IOException {
+    if (chunks.isEmpty()) {
+      writeChunkHeader(out, NBD_REPLY_FLAG_DONE, NBD_REPLY_TYPE_NONE, 0);
+      return;
+    }
+    for (int i = 0; i < chunks.size(); i++) {
+      Chunk chunk = chunks.get(i);
+      short flags = i == chunks.size() - 1 ? NBD_REPLY_FLAG_DONE : 0;
+      writeChunkHeader(out, flags, chunk.type, chunk.header.length + chunk.dataLength);
+      out.write(chunk.header);
+      if (chunk.data != null) {
+        out.write(chunk.data, chunk.dataOffset, chunk.dataLength);
+      }
+    }
+  }
+
+  private void writeChunkHeader(DataOutput out, short flags, short type, int length) throws IOException {
+    out.writeInt(NBD_STRUCTURED_REPLY_MAGIC);
+    out.writeShort(flags);
+    out.writeShort(type);
+    out.writeLong(handle);
+    out.writeInt(length);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static nbdfdb.NBD.*;
+
+/**
+ * Dispatches decoded requests to the mounted volume. Replies are written from whichever
+ * thread completes the storage future, netty moves the write onto the event loop. Once too many
+ * requests or bytes are waiting on their replies the connection stops reading until enough of the
+ * replies have been written.
+ */
+class NBDVolumeHandler extends SimpleChannelInboundHandler<NBDRequest> {
+
+  private static Logger log = Logger.getLogger("NBD");
+
+  private static final int MAX_IN_FLIGHT_REQUESTS = 256;
+  // Data being read or written, requests already decoded are still handled past it
+  private static final long MAX_IN_FLIGHT_BYTES = 2L * NBD_MAX_PAYLOAD;
+
+  private final NBDVolumeServer volume;
+  private boolean connected = true;
+
+  // Only changed on the event loop
+  private int inFlightRequests;
+  private long inFlightBytes;
+
+  NBDVolumeHandler(NBDVolumeServer volume) {
+    this.volume = volume;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, NBDRequest request) {
+    if (request.type == Command.DISCONNECT) {
+      disconnect();
+      ctx.close();
+    } else {
+      long bytes = request.type == Command.READ || request.type == Command.WRITE ? request.length : 0;
+      inFlightRequests++;
+      inFlightBytes += bytes;
+      if (overLimit()) {
+        ctx.channel().config().setAutoRead(false);
+      }
+      // Listeners run on the event loop
+      volume.handle(request).thenAccept(reply -> ctx.writeAndFlush(reply).addListener($ -> replied(ctx, bytes)));
+    }
+  }
+
+  private void replied(ChannelHandlerContext ctx, long bytes) {
+    inFlightRequests--;
+    inFlightBytes -= bytes;
+    if (!overLimit() && !ctx.channel().config().isAutoRead()) {
+      ctx.channel().config().setAutoRead(true);
+    }
+  }
+
+  private boolean overLimit() {
+    return inFlightRequests >= MAX_IN_FLIGHT_REQUESTS || inFlightBytes >= MAX_IN_FLIGHT_BYTES;
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    disconnect();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    log.log(Level.SEVERE, "Closing connection", cause);
+    ctx.close();
+  }
+
+  private void disconnect() {
+    if (connected) {
+      connected = false;
+      volume.disconnect();
+    }
+  }
+}
@@ -17,14 +17,13 @@
 
 package nbdfdb;
 
-import com.google.common.primitives.UnsignedInteger;
-import com.google.common.primitives.UnsignedLong;
-import nbdfdb.NBD.*;
-
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,114 +32,234 @@ import static nbdfdb.NBD.*;
 /**
  * Created by sam on 11/9/14.
  */
-public class NBDVolumeServer implements Runnable {
+public class NBDVolumeServer {
 
   private final Logger log;
 
-  private final DataInputStream in;
-  private final DataOutputStream out;
+  // Most descriptors returned for a single block status request
+  private static final int MAX_EXTENTS = 64 * 1024;
+
   private final String exportName;
   private final Storage storage;
+  private final Metrics metrics;
+
+  // Sequential reads on this connection
+  private final Readahead readahead = new Readahead();
 
-  public NBDVolumeServer(String exportName, DataInputStream in, DataOutputStream out) throws IOException {
+  // Negotiated during the handshake
+  private boolean structuredReplies;
+  private boolean allocationContext;
+
+  public NBDVolumeServer(String exportName) throws IOException {
     this.exportName = exportName;
     log = Logger.getLogger("NDB: " + exportName);
-    storage = new FDBStorage(exportName);
+    FDBStorage fdbStorage = FDBStorage.connect(exportName);
+    storage = fdbStorage;
+    metrics = fdbStorage.metrics();
     log.info("Mounting " + exportName + " of size " + storage.size());
-    storage.connect();
-    this.in = in;
-    this.out = out;
   }
 
-  private void writeReplyHeaderAndFlush(long handle) throws IOException {
+  static int transmissionFlags() {
+    // Writes from every connection go through the same storage so any flush covers them all
+    return NBD_FLAG_HAS_FLAGS | NBD_FLAG_SEND_FLUSH | NBD_FLAG_SEND_FUA | NBD_FLAG_SEND_TRIM | NBD_FLAG_SEND_WRITE_ZEROES |
+            NBD_FLAG_SEND_CACHE | NBD_FLAG_CAN_MULTI_CONN;
+  }
+
+  Storage storage() {
+    return storage;
+  }
+
+  void negotiated(boolean structuredReplies, boolean allocationContext) {
+    this.structuredReplies = structuredReplies;
+    this.allocationContext = allocationContext;
+  }
+
+  /**
+   * Executes a single request against storage. The returned future completes with the
+   * reply to send back to the client. DISCONNECT must be handled by the caller.
+   */
+  CompletableFuture<NBDReply> handle(NBDRequest request) {
+    long handle = request.handle;
+    long start = System.nanoTime();
+    CompletableFuture<NBDReply> reply;
+    switch (request.type) {
+      case READ: {
+        if (request.length > NBD_MAX_PAYLOAD) {
+          // Larger than the maximum block size we advertised
+          reply = CompletableFuture.completedFuture(error(handle, NBD_EINVAL));
+          break;
+        }
+        byte[] buffer = new byte[request.length];
+        log.fine("Reading " + buffer.length + " from " + request.offset);
+        reply = storage.read(buffer, request.offset).thenApply($ -> {
+          metrics.record(Metrics.Latency.READ, System.nanoTime() - start);
+          metrics.read(buffer.length);
+          return readReply(handle, request.offset, buffer);
+        });
+        // Without a cache to keep it in nothing is read ahead or counted as prefetched
+        long[] ahead = storage.prefetches() ? readahead.read(request.offset, request.length, storage.size()) : null;
+        if (ahead != null) {
+          storage.prefetch(ahead[0], ahead[1]).exceptionally(e -> {
+            log.log(Level.WARNING, "Readahead failed " + exportName, e);
+            return null;
+          });
+        }
+        break;
+      }
+      case WRITE: {
+        log.fine("Writing " + request.data.length + " to " + request.offset);
+        boolean fua = (request.flags & NBD_CMD_FLAG_FUA) != 0;
+        reply = storage.write(request.data, request.offset, fua).thenApply($ -> {
+          metrics.record(Metrics.Latency.WRITE, System.nanoTime() - start);
+          metrics.written(request.data.length);
+          return new NBDReply(handle);
+        });
+        break;
+      }
+      case FLUSH: {
+        log.info("Flushing");
+        reply = storage.flush().thenApply($ -> {
+          long elapsed = System.nanoTime() - start;
+          metrics.record(Metrics.Latency.FLUSH, elapsed);
+          log.info("Flush complete: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+          return new NBDReply(handle);
+        });
+        break;
+      }
+      case TRIM:
+        log.info("Trimming " + request.length + " from " + request.offset);
+        reply = storage.trim(request.offset, request.length).thenApply($ -> {
+          metrics.record(Metrics.Latency.TRIM, System.nanoTime() - start);
+          return new NBDReply(handle);
+        });
+        break;
+      case WRITE_ZEROES:
+        log.info("Zeroing " + request.length + " from " + request.offset);
+        boolean noHole = (request.flags & NBD_CMD_FLAG_NO_HOLE) != 0;
+        reply = storage.writeZeroes(request.offset, request.length, noHole).thenApply($ -> {
+          metrics.record(Metrics.Latency.WRITE_ZEROES, System.nanoTime() - start);
+          return new NBDReply(handle);
+        });
+        break;
+      case BLOCK_STATUS:
+        if (!allocationContext || request.length == 0) {
+          reply = CompletableFuture.completedFuture(error(handle, NBD_EINVAL));
+        } else {
+          reply = storage.allocated(request.offset, request.length).thenApply(allocated -> blockStatus(request, allocated));
+        }
+        break;
+      case CACHE:
+        reply = storage.prefetch(request.offset, request.length).thenApply($ -> new NBDReply(handle));
+        break;
+      default:
+        throw new IllegalArgumentException("Unexpected request: " + request.type);
+    }
+    return reply.exceptionally(e -> {
+      log.log(Level.SEVERE, "Failed to " + request.type + " " + exportName, e);
+      return error(handle, NBD_EIO);
+    });
+  }
+
+  private NBDReply error(long handle, int error) {
+    return structuredReplies ? NBDStructuredReply.error(handle, error) : new NBDReply(handle, error, null);
+  }
+
+  /**
+   * With structured replies runs of blocks that read as zeros are sent as holes instead of data.
+   */
+  private NBDReply readReply(long handle, long offset, byte[] buffer) {
+    if (!structuredReplies) {
+      return new NBDReply(handle, buffer);
+    }
+    NBDStructuredReply reply = new NBDStructuredReply(handle);
+    int blockSize = storage.blockSize();
+    int runStart = 0;
+    boolean runZero = false;
+    int position = 0;
+    while (position < buffer.length) {
+      // Split on block boundaries
+      int end = (int) Math.min(buffer.length, position + blockSize - (offset + position) % blockSize);
+      boolean zero = isZero(buffer, position, end);
+      if (position > runStart && zero != runZero) {
+        addRun(reply, offset, buffer, runStart, position, runZero);
+        runStart = position;
+      }
+      runZero = zero;
+      position = end;
+    }
+    addRun(reply, offset, buffer, runStart, buffer.length, runZero);
+    return reply;
+  }
+
+  private static void addRun(NBDStructuredReply reply, long offset, byte[] buffer, int start, int end, boolean zero) {
+    if (end > start) {
+      if (zero) {
+        reply.hole(offset + start, end - start);
+      } else {
+        reply.data(offset + start, buffer, start, end - start);
+      }
+    }
+  }
+
+  private static boolean isZero(byte[] buffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buffer[i] != 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Describes the range as runs of allocated blocks and holes that read as zeros.
+   */
+  private NBDReply blockStatus(NBDRequest request, BitSet allocated) {
+    int blockSize = storage.blockSize();
+    long end = request.offset + request.length;
+    int block = 0;
+    long position = request.offset;
+    int[] descriptors = new int[Math.min(MAX_EXTENTS, request.length / blockSize + 2) * 2];
+    int count = 0;
+    boolean one = (request.flags & NBD_CMD_FLAG_REQ_ONE) != 0;
+    while (position < end && count < descriptors.length && !(one && count > 0)) {
+      boolean hole = !allocated.get(block);
+      int next = hole ? allocated.nextSetBit(block) : allocated.nextClearBit(block);
+      long extentEnd = next == -1 ? end : Math.min(end, (request.offset / blockSize + next) * blockSize);
+      descriptors[count++] = (int) (extentEnd - position);
+      descriptors[count++] = hole ? NBD_STATE_HOLE | NBD_STATE_ZERO : 0;
+      position = extentEnd;
+      block = next;
+    }
+    return new NBDStructuredReply(request.handle)
+            .blockStatus(NBD_META_CONTEXT_BASE_ALLOCATION_ID, Arrays.copyOf(descriptors, count));
+  }
+
+  void disconnect() {
+    log.info("Disconnecting " + exportName + ", " + readahead);
+    storage.disconnect();
+  }
+
+  private static void writeReplyAndFlush(DataOutputStream out, NBDReply reply) {
     synchronized (out) {
-      out.write(NBD_REPLY_MAGIC_BYTES);
-      out.write(NBD_OK_BYTES);
-      out.writeLong(handle);
-      out.flush();
+      try {
+        reply.write(out);
+        out.flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
     }
   }
 
-  @Override
-  public void run() {
+  /**
+   * Serves requests from a connection that has finished the handshake until the client disconnects.
+   */
+  public void serve(DataInputStream in, DataOutputStream out) {
     try {
-      out.writeLong(storage.size());
-      out.writeShort(NBD_FLAG_HAS_FLAGS | NBD_FLAG_SEND_FLUSH);
-      out.write(EMPTY_124);
-      out.flush();
-
       while (true) {
-        int requestMagic = in.readInt();// MAGIC
-        if (requestMagic != NBD_REQUEST_MAGIC) {
-          throw new IllegalArgumentException("Invalid magic number for request: " + requestMagic);
-        }
-        Command requestType = Command.values()[in.readInt()];
-        long handle = in.readLong();
-        UnsignedLong offset = UnsignedLong.fromLongBits(in.readLong());
-        UnsignedInteger requestLength = UnsignedInteger.fromIntBits(in.readInt());
-        if (requestLength.longValue() > Integer.MAX_VALUE) {
-          // We could ultimately support this but it isn't common by any means
-          throw new IllegalArgumentException("Failed to read, length too long: " + requestLength);
-        }
-        switch (requestType) {
-          case READ: {
-            byte[] buffer = new byte[requestLength.intValue()];
-            log.info("Reading " + buffer.length + " from " + offset);
-            storage.read(buffer, offset.intValue()).thenApply($ -> {
-              synchronized (out) {
-                try {
-                  out.write(NBD_REPLY_MAGIC_BYTES);
-                  out.write(NBD_OK_BYTES);
-                  out.writeLong(handle);
-                  out.write(buffer);
-                  out.flush();
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
-                }
-              }
-              return null;
-            });
-            break;
-          }
-          case WRITE: {
-            byte[] buffer = new byte[requestLength.intValue()];
-            in.readFully(buffer);
-            log.info("Writing " + buffer.length + " to " + offset);
-            storage.write(buffer, offset.intValue()).thenApply($ -> {
-              try {
-                writeReplyHeaderAndFlush(handle);
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-              return null;
-            });
-            break;
-          }
-          case DISCONNECT:
-            log.info("Disconnecting " + exportName);
-            storage.disconnect();
-            return;
-          case FLUSH:
-            log.info("Flushing");
-            long start = System.currentTimeMillis();
-            storage.flush().thenApply($ -> {
-              try {
-                writeReplyHeaderAndFlush(handle);
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-              log.info("Flush complete: " + (System.currentTimeMillis() - start) + "ms");
-              return null;
-            });
-            break;
-          case TRIM:
-            log.warning("Trim unimplemented");
-            writeReplyHeaderAndFlush(handle);
-            break;
-          case CACHE:
-            log.warning("Cache unimplemented");
-            break;
+        NBDRequest request = NBDRequest.read(in);
+        if (request.type == Command.DISCONNECT) {
+          disconnect();
+          return;
         }
+        handle(request).thenAccept(reply -> writeReplyAndFlush(out, reply));
       }
     } catch (Exception e) {
       log.log(Level.SEVERE, "Unmounting volume " + exportName, e);
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+/**
+ * Detects a sequential stream of reads on a connection and decides what to prefetch ahead of it.
+ * The window doubles while prefetched data is being read and halves when a stream ends with most
+ * of its last prefetch unread. Each connection has its own, a stream whose reads are spread across
+ * connections isn't seen as one. Prefetched blocks go into the block cache, so reads aren't
+ * tracked at all when the cache is disabled.
+ */
+class Readahead {
+
+  static final int MIN_WINDOW = 128 * 1024;
+  static final int MAX_WINDOW = 4 * 1024 * 1024;
+
+  // Reads in a row that continue the stream before prefetching starts
+  private static final int SEQUENTIAL_READS = 2;
+
+  private long streamEnd = -1;
+  private int sequential;
+  private int window = MIN_WINDOW;
+
+  // Range of the last prefetch and how much of it has been read
+  private long prefetchStart;
+  private long prefetchEnd;
+  private long prefetchRead;
+
+  // Totals across all streams for this connection
+  private long prefetched;
+  private long hits;
+
+  /**
+   * Records a read and returns the range to prefetch as {offset, length}, or null.
+   */
+  synchronized long[] read(long offset, int length, long size) {
+    long end = offset + length;
+    // Reads of a stream can arrive a little out of order
+    if (offset >= streamEnd - length && offset <= streamEnd + window) {
+      sequential++;
+    } else {
+      ended();
+      sequential = 0;
+    }
+    streamEnd = Math.max(streamEnd, end);
+    long overlap = Math.min(end, prefetchEnd) - Math.max(offset, prefetchStart);
+    if (overlap > 0) {
+      prefetchRead += overlap;
+      hits += overlap;
+    }
+    if (sequential < SEQUENTIAL_READS || prefetchEnd - end >= window / 2) {
+      return null;
+    }
+    if (prefetchEnd > prefetchStart && prefetchRead >= (prefetchEnd - prefetchStart) / 2) {
+      // The last prefetch is being used, get further ahead
+      window = Math.min(MAX_WINDOW, window * 2);
+    }
+    long start = Math.max(prefetchEnd, end);
+    long stop = Math.min(size, end + window);
+    if (start >= stop) {
+      return null;
+    }
+    // Whatever is left of the last prefetch is still ahead of the stream
+    prefetchStart = end;
+    prefetchEnd = stop;
+    prefetchRead = 0;
+    prefetched += stop - start;
+    return new long[]{start, stop - start};
+  }
+
+  private void ended() {
+    if (prefetchEnd > prefetchStart && prefetchRead < (prefetchEnd - prefetchStart) / 2) {
+      window = Math.max(MIN_WINDOW, window / 2);
+    }
+    prefetchStart = prefetchEnd = prefetchRead = 0;
+  }
+
+  /**
+   * Fraction of the prefetched bytes that were later read.
+   */
+  synchronized double hitRate() {
+    return prefetched == 0 ? 0 : (double) Math.min(hits, prefetched) / prefetched;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Readahead{window=" + window + ", prefetched=" + prefetched + ", hitRate=" + hitRate() + "}";
+  }
+}
@@ -17,6 +17,7 @@
 
 package nbdfdb;
 
+import java.util.BitSet;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -31,9 +32,46 @@ public interface Storage {
 
   CompletableFuture<Void> write(byte[] buffer, long offset);
 
+  /**
+   * @param fua the write must be durable before the future completes
+   */
+  CompletableFuture<Void> write(byte[] buffer, long offset, boolean fua);
+
+  CompletableFuture<Void> trim(long offset, long length);
+
+  /**
+   * Zeros the range, which may deallocate it unless noHole is set.
+   */
+  CompletableFuture<Void> writeZeroes(long offset, long length, boolean noHole);
+
   CompletableFuture<Void> flush();
 
+  /**
+   * Hint that the range will be read soon.
+   */
+  CompletableFuture<Void> prefetch(long offset, long length);
+
+  /**
+   * Whether prefetched data is kept until it is read, prefetch does nothing otherwise.
+   */
+  boolean prefetches();
+
+  /**
+   * Which blocks in the range may hold data, bit 0 is the block containing the offset.
+   */
+  CompletableFuture<BitSet> allocated(long offset, long length);
+
   long size();
 
+  /**
+   * Size of the units the volume is stored in, a multiple of the sector size.
+   */
+  int blockSize();
+
+  /**
+   * Smallest unit of I/O the volume supports.
+   */
+  int sectorSize();
+
   long usage();
 }
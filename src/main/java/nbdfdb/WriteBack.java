@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The writes to a volume that haven't committed yet. Each is issued once every earlier write that
+ * overlaps it has committed so that they land in order. Writes that fit under the write-back limit
+ * are acknowledged as soon as they are issued and laid over reads until they commit, a flush
+ * completes once everything issued before it has.
+ */
+class WriteBack {
+
+  private final LongSupplier limit;
+  private final Metrics metrics;
+  // Told the offset and length of a write when it starts and again once it has committed
+  private final BiConsumer<Long, Long> invalidate;
+
+  // In the order they were issued
+  private final List<PendingWrite> pending = new ArrayList<>();
+  private long dirtyBytes;
+  // A write that was acknowledged before it failed, reported by the next flush
+  private volatile Throwable failure;
+
+  private static class PendingWrite {
+    final long offset;
+    final long length;
+    // Only set for writes that were acknowledged before they were durable
+    byte[] buffered;
+    final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+    PendingWrite(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    boolean overlaps(long offset, long length) {
+      return this.offset < offset + length && offset < this.offset + this.length;
+    }
+  }
+
+  /**
+   * @param limit bytes that may be acknowledged before they are durable, 0 to write through
+   */
+  WriteBack(LongSupplier limit, Metrics metrics, BiConsumer<Long, Long> invalidate) {
+    this.limit = limit;
+    this.metrics = metrics;
+    this.invalidate = invalidate;
+  }
+
+  /**
+   * Issues the operation after the earlier writes it overlaps.
+   *
+   * @param buffer the data if the write may be acknowledged before it is durable
+   * @return completes when the write may be acknowledged
+   */
+  CompletableFuture<Void> submit(long offset, long length, byte[] buffer, Supplier<CompletableFuture<Void>> operation) {
+    PendingWrite write = new PendingWrite(offset, length);
+    List<CompletableFuture<Void>> earlier = new ArrayList<>();
+    synchronized (pending) {
+      for (PendingWrite other : pending) {
+        if (other.overlaps(offset, length)) {
+          earlier.add(other.durable);
+        }
+      }
+      if (buffer != null && dirtyBytes + length <= limit.getAsLong()) {
+        write.buffered = buffer;
+        dirtyBytes += length;
+      }
+      pending.add(write);
+    }
+    invalidate.accept(offset, length);
+    long queued = System.nanoTime();
+    CompletableFuture.allOf(earlier.toArray(new CompletableFuture[earlier.size()]))
+            // Failures of earlier writes are reported to their own callers
+            .handle(($, e) -> null)
+            .thenCompose($ -> {
+              metrics.record(Metrics.Latency.QUEUE_WAIT, System.nanoTime() - queued);
+              return operation.get();
+            })
+            .whenComplete(($, e) -> {
+              // Before the write stops being overlaid on reads
+              invalidate.accept(offset, length);
+              synchronized (pending) {
+                pending.remove(write);
+                if (write.buffered != null) {
+                  dirtyBytes -= length;
+                }
+              }
+              if (e != null && write.buffered != null) {
+                failure = e;
+              }
+              if (e == null) {
+                write.durable.complete(null);
+              } else {
+                write.durable.completeExceptionally(e);
+              }
+            });
+    return write.buffered == null ? write.durable : CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Runs the read and lays the acknowledged writes that haven't committed yet over it in the order
+   * they were issued.
+   */
+  CompletableFuture<Void> read(byte[] buffer, long offset, Supplier<CompletableFuture<Void>> read) {
+    List<PendingWrite> overlapping = new ArrayList<>();
+    synchronized (pending) {
+      for (PendingWrite write : pending) {
+        if (write.buffered != null && write.overlaps(offset, buffer.length)) {
+          overlapping.add(write);
+        }
+      }
+    }
+    if (overlapping.isEmpty()) {
+      return read.get();
+    }
+    return read.get().thenRun(() -> {
+      for (PendingWrite write : overlapping) {
+        long start = Math.max(offset, write.offset);
+        long end = Math.min(offset + buffer.length, write.offset + write.length);
+        System.arraycopy(write.buffered, (int) (start - write.offset), buffer, (int) (start - offset), (int) (end - start));
+      }
+    });
+  }
+
+  /**
+   * Completes once every write issued before it has committed, failing if one that was
+   * acknowledged early failed since the last flush.
+   */
+  CompletableFuture<Void> flush() {
+    List<CompletableFuture<Void>> outstanding = new ArrayList<>();
+    synchronized (pending) {
+      for (PendingWrite write : pending) {
+        outstanding.add(write.durable);
+      }
+    }
+    return CompletableFuture.allOf(outstanding.toArray(new CompletableFuture[outstanding.size()]))
+            // Writes that weren't acknowledged early report their failures to their own callers
+            .handle(($, e) -> null)
+            .thenCompose($ -> {
+              CompletableFuture<Void> result = new CompletableFuture<>();
+              Throwable failed = failure;
+              if (failed == null) {
+                result.complete(null);
+              } else {
+                failure = null;
+                result.completeExceptionally(failed);
+              }
+              return result;
+            });
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb.cli;
+
+import com.apple.foundationdb.FDB;
+import com.sampullara.cli.Argument;
+import nbdfdb.FDBArray;
+
+import java.util.Date;
+
+public class CheckpointCommand implements Runnable {
+  FDB fdb = FDB.selectAPIVersion(510);
+
+  @Argument(alias = "n", description = "Name of the snapshot to record", required = true)
+  private String snapshotName;
+
+  @Argument(alias = "v", description = "Name of the volume to snapshot", required = true)
+  private String volumeName;
+
+  @Override
+  public void run() {
+    FDBArray volume = FDBArray.open(fdb.open(), volumeName);
+    long timestamp = volume.createSnapshot(snapshotName);
+    System.out.println("Recorded snapshot " + snapshotName + " of " + volumeName + " at " +
+            (volume.hasVersionstamps() ? "version " + timestamp : new Date(timestamp)));
+  }
+}
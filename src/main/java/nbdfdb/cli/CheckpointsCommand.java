@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb.cli;
+
+import com.apple.foundationdb.FDB;
+import com.sampullara.cli.Argument;
+import nbdfdb.FDBArray;
+
+import java.util.Date;
+import java.util.Map;
+
+public class CheckpointsCommand implements Runnable {
+  FDB fdb = FDB.selectAPIVersion(510);
+
+  @Argument(alias = "v", description = "Name of the volume", required = true)
+  private String volumeName;
+
+  @Override
+  public void run() {
+    FDBArray volume = FDBArray.open(fdb.open(), volumeName);
+    for (Map.Entry<String, Long> snapshot : volume.listSnapshots().entrySet()) {
+      System.out.println(snapshot.getKey() + ": " +
+              (volume.hasVersionstamps() ? "version " + snapshot.getValue() : new Date(snapshot.getValue())));
+    }
+  }
+}
@@ -20,6 +20,7 @@ package nbdfdb.cli;
 import com.apple.foundationdb.FDB;
 import com.google.common.primitives.Longs;
 import com.sampullara.cli.Argument;
+import nbdfdb.Codec;
 import nbdfdb.FDBArray;
 
 import java.util.regex.Matcher;
@@ -36,9 +37,18 @@ public class CreateCommand implements Runnable {
   @Argument(alias = "s", description = "Size in bytes of the volume, can use K, M, G, or T units.", required = true)
   private String size;
 
-  @Argument(alias = "b", description = "Block size of the volume")
+  @Argument(alias = "b", description = "Sector size of the volume")
   private Integer blockSize = 512;
 
+  @Argument(alias = "c", description = "Bytes stored per value, a multiple of the sector size")
+  private Integer chunkSize = 16 * 1024;
+
+  @Argument(alias = "z", description = "Compression for stored blocks, none, lz4 or deflate")
+  private String codec = "none";
+
+  @Argument(alias = "d", description = "Store chunks once for every volume that writes the same content")
+  private Boolean dedup = false;
+
   enum Unit {
     K(1_000L),
     M(1_000_000L),
@@ -63,7 +73,10 @@ public class CreateCommand implements Runnable {
         Unit unit = Unit.valueOf(unitGroup.toUpperCase());
         value *= unit.factor;
       }
-      FDBArray fdbArray = FDBArray.create(fdb.open(), exportName, blockSize);
+      FDBArray fdbArray = FDBArray.create(fdb.open(), exportName, chunkSize, blockSize, Codec.valueOf(codec.toUpperCase()));
+      if (dedup) {
+        fdbArray.setDedup(true);
+      }
       fdbArray.setMetadata(SIZE_KEY, Longs.toByteArray(value));
       System.out.println("Successfully created '" + exportName + "'");
     } else {
@@ -19,15 +19,10 @@ package nbdfdb.cli;
 
 import com.apple.foundationdb.Database;
 import com.apple.foundationdb.FDB;
-import com.apple.foundationdb.directory.DirectoryLayer;
+import nbdfdb.FDBArray;
 import nbdfdb.FDBStorage;
 
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-
-import static java.util.Collections.singletonList;
 
 public class ListCommand implements Runnable {
   FDB fdb = FDB.selectAPIVersion(510);
@@ -35,15 +30,16 @@ public class ListCommand implements Runnable {
   @Override
   public void run() {
     Database db = fdb.open();
-    List<String> exportNames = null;
-    try {
-      exportNames = DirectoryLayer.getDefault().list(db, singletonList("com.sampullara.fdb.array")).get();
-    } catch (ExecutionException | InterruptedException e) {
-      throw new RuntimeException(e);
-    }
+    List<String> exportNames = FDBArray.list(db);
     for (String exportName : exportNames) {
-      FDBStorage fdbStorage = new FDBStorage(exportName);
-      System.out.printf("%s: %d/%d %2.1f\n", exportName, fdbStorage.usage(), fdbStorage.size(), (double)fdbStorage.usage()/fdbStorage.size()*100);
+      // Described from the array alone, connecting would export metrics for it
+      FDBArray fdbArray = FDBArray.open(db, exportName);
+      long size = FDBStorage.size(fdbArray);
+      long usage = fdbArray.usage().join();
+      int snapshots = fdbArray.listSnapshots().size();
+      long stored = fdbArray.storedUsage().join();
+      System.out.printf("%s: %d/%d %2.1f, %d stored (%s), %d snapshots\n", exportName, usage, size,
+              (double)usage/size*100, stored, fdbArray.getCodec().name().toLowerCase(), snapshots);
     }
   }
 }
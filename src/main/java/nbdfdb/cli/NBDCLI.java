@@ -25,6 +25,10 @@ public class NBDCLI {
     CREATE(new CreateCommand()),
     DELETE(new DeleteCommand()),
     SNAPSHOT(new SnapshotCommand()),
+    CHECKPOINT(new CheckpointCommand()),
+    CHECKPOINTS(new CheckpointsCommand()),
+    RELEASE(new ReleaseCommand()),
+    FLATTEN(new FlattenCommand()),
     LIST(new ListCommand()),
     SERVER(new ServerCommand()),
     ;
@@ -17,15 +17,55 @@
 
 package nbdfdb.cli;
 
+import com.sampullara.cli.Argument;
 import nbdfdb.NBDServer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class ServerCommand implements Runnable {
+  @Argument(alias = "p", description = "The server port to listen on for connections")
+  private Integer port = 10809;
+
+  @Argument(alias = "e", description = "Serve all connections from a few netty event loops instead of a thread per connection")
+  private Boolean eventLoop = false;
+
+  @Argument(alias = "w", description = "Megabytes per volume acknowledged before they are durable, 0 writes through")
+  private Integer writeBack = 0;
+
+  @Argument(alias = "c", description = "Megabytes of off-heap memory for caching blocks, per block size in use, 0 (the default) disables the cache and with it readahead")
+  private Integer cache = 0;
+
+  @Argument(description = "How the block cache picks blocks to evict, clock or lru")
+  private String cacheEviction = "clock";
+
+  @Argument(alias = "g", description = "Microseconds small writes wait to share a transaction with others")
+  private Integer groupCommit = 0;
+
+  @Argument(description = "Block versions per second the background compactor may scan, 0 (the default) to disable it")
+  private Integer compact = 0;
+
+  @Argument(alias = "d", description = "Store writes of part of a block as deltas merged on read instead of rewriting the block")
+  private Boolean deltas = false;
+
+  @Argument(alias = "m", description = "Port serving metrics as text on localhost, 0 to only publish them over JMX")
+  private Integer metrics = 0;
+
   @Override
   public void run() {
     try {
-      NBDServer.main(new String[0]);
+      List<String> args = new ArrayList<>(Arrays.asList("-p", port.toString(), "-w", writeBack.toString(),
+              "-c", cache.toString(), "-cacheEviction", cacheEviction, "-g", groupCommit.toString(),
+              "-compact", compact.toString(), "-m", metrics.toString()));
+      if (eventLoop) {
+        args.add("-e");
+      }
+      if (deltas) {
+        args.add("-d");
+      }
+      NBDServer.main(args.toArray(new String[args.size()]));
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(1);
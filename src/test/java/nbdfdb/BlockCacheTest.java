@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final long VOLUME = 1;
+
+  private final AtomicLong epoch = new AtomicLong();
+
+  @Test
+  public void testLruEviction() {
+    BlockCache cache = new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.LRU, 1);
+    fill(cache, 0, 4, false);
+    assertTrue(get(cache, 0) != null);
+    fill(cache, 4, 1, true);
+    assertEquals(4, cache.cachedBlocks());
+    assertEquals(1, cache.evictions());
+    assertFalse(cache.contains(VOLUME, 1));
+    for (long block : new long[]{0, 2, 3, 4}) {
+      assertEquals(block, (long) get(cache, block));
+    }
+  }
+
+  @Test
+  public void testClockEviction() {
+    BlockCache cache = new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.CLOCK, 1);
+    fill(cache, 0, 4, false);
+    // Everything was just referenced so the hand goes all the way around and takes the first slot
+    fill(cache, 4, 1, true);
+    assertFalse(cache.contains(VOLUME, 0));
+    // The next slot gets a second chance
+    assertTrue(get(cache, 1) != null);
+    fill(cache, 5, 1, true);
+    assertTrue(cache.contains(VOLUME, 1));
+    assertFalse(cache.contains(VOLUME, 2));
+    assertEquals(2, cache.evictions());
+  }
+
+  @Test
+  public void testAdmission() {
+    BlockCache cache = new BlockCache(1024 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.LRU, 1);
+    // Asked for three times before it was cached, then it is the least recently used
+    for (int i = 0; i < 3; i++) {
+      assertNull(get(cache, 0));
+    }
+    fill(cache, 0, 1024, false);
+
+    assertNull(get(cache, 5000));
+    fill(cache, 5000, 1, false);
+    assertFalse(cache.contains(VOLUME, 5000));
+    assertTrue(cache.contains(VOLUME, 0));
+    assertEquals(1, cache.rejections());
+
+    for (int i = 0; i < 3; i++) {
+      assertNull(get(cache, 5000));
+    }
+    fill(cache, 5000, 1, false);
+    assertTrue(cache.contains(VOLUME, 5000));
+    assertFalse(cache.contains(VOLUME, 0));
+    assertEquals(1, cache.evictions());
+
+    // Read ahead blocks haven't been asked for yet and are let in anyway
+    fill(cache, 6000, 1, true);
+    assertTrue(cache.contains(VOLUME, 6000));
+    assertEquals(1, cache.rejections());
+  }
+
+  @Test
+  public void testSlotReuse() {
+    BlockCache cache = new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.LRU, 1);
+    fill(cache, 0, 4, false);
+    // The last block is moved into the hole
+    cache.invalidate(VOLUME, 1, 1);
+    assertEquals(3, cache.cachedBlocks());
+    assertEquals(3, (long) get(cache, 3));
+
+    fill(cache, 7, 1, false);
+    assertEquals(4, cache.cachedBlocks());
+    assertEquals(0, cache.evictions());
+    for (long block : new long[]{0, 2, 3, 7}) {
+      assertEquals(block, (long) get(cache, block));
+    }
+  }
+
+  @Test
+  public void testInvalidate() {
+    BlockCache cache = new BlockCache(256 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.CLOCK, 4);
+    fill(cache, 0, 32, false);
+    cache.fill(2, 0, blocks(0, 32), epoch, epoch.get(), false);
+    assertEquals(64, cache.cachedBlocks());
+
+    // Wider than the segments so each drops what it has in the range, narrower goes block by block
+    cache.invalidate(VOLUME, 8, 15);
+    cache.invalidate(VOLUME, 20, 21);
+    for (long block = 0; block < 32; block++) {
+      boolean dropped = block >= 8 && block <= 15 || block == 20 || block == 21;
+      assertEquals(!dropped, cache.contains(VOLUME, block));
+      if (!dropped) {
+        assertEquals(block, (long) get(cache, block));
+      }
+      assertTrue(cache.contains(2, block));
+    }
+
+    cache.invalidate(2);
+    for (long block = 0; block < 32; block++) {
+      assertFalse(cache.contains(2, block));
+    }
+    assertEquals(22, cache.cachedBlocks());
+  }
+
+  /**
+   * Readers fill the cache with what they read while a writer changes blocks, bumps the epoch and
+   * invalidates them. Nothing read before a write may be left cached after it.
+   */
+  @Test
+  public void testWriteEpochRace() throws InterruptedException {
+    BlockCache cache = new BlockCache(1024 * BLOCK_SIZE, BLOCK_SIZE, BlockCache.Eviction.CLOCK, 8);
+    int blocks = 64;
+    AtomicIntegerArray versions = new AtomicIntegerArray(blocks);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Random random = new Random(i);
+      Thread reader = new Thread(() -> {
+        while (writing.get()) {
+          int block = random.nextInt(blocks);
+          long readEpoch = epoch.get();
+          byte[] read = new byte[BLOCK_SIZE];
+          ByteBuffer.wrap(read).putInt(versions.get(block));
+          cache.fill(VOLUME, block, read, epoch, readEpoch, random.nextBoolean());
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+    Random random = new Random();
+    for (int i = 0; i < 20000; i++) {
+      int block = random.nextInt(blocks);
+      int length = random.nextInt(4) == 0 ? 16 : 1;
+      for (int j = block; j < Math.min(blocks, block + length); j++) {
+        versions.incrementAndGet(j);
+      }
+      epoch.incrementAndGet();
+      cache.invalidate(VOLUME, block, block + length - 1);
+    }
+    writing.set(false);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    byte[] read = new byte[BLOCK_SIZE];
+    for (int block = 0; block < blocks; block++) {
+      if (cache.get(VOLUME, block, read, 0, 0, BLOCK_SIZE)) {
+        assertEquals(versions.get(block), ByteBuffer.wrap(read).getInt());
+      }
+    }
+  }
+
+  /**
+   * Caches count blocks from firstBlock, each holding its block number.
+   */
+  private void fill(BlockCache cache, long firstBlock, int count, boolean prefetched) {
+    cache.fill(VOLUME, firstBlock, blocks(firstBlock, count), epoch, epoch.get(), prefetched);
+  }
+
+  private static byte[] blocks(long firstBlock, int count) {
+    ByteBuffer blocks = ByteBuffer.allocate(count * BLOCK_SIZE);
+    for (int i = 0; i < count; i++) {
+      blocks.putLong(i * BLOCK_SIZE, firstBlock + i);
+    }
+    return blocks.array();
+  }
+
+  /**
+   * The block number cached for the block or null if it isn't cached.
+   */
+  private static Long get(BlockCache cache, long block) {
+    byte[] read = new byte[BLOCK_SIZE];
+    return cache.get(VOLUME, block, read, 0, 0, BLOCK_SIZE) ? ByteBuffer.wrap(read).getLong() : null;
+  }
+}
@@ -26,9 +26,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 
+import static java.util.Collections.singleton;
 import static org.junit.Assert.*;
 
 public class FDBArrayTest {
@@ -93,7 +96,7 @@ public class FDBArrayTest {
     byte[] read = new byte[12345];
     fdbArray.read(read, 10000).get();
     assertArrayEquals(bytes, read);
-    long timestamp = System.currentTimeMillis();
+    long timestamp = fdbArray.currentVersion();
     Thread.sleep(10);
     byte[] nextBytes = new byte[12345];
     r.nextBytes(nextBytes);
@@ -109,6 +112,332 @@ public class FDBArrayTest {
     assertArrayEquals(readEmpty, empty);
   }
 
+  @Test
+  public void testTrim() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[4096];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+    FDBArray snapshot = fdbArray.snapshot();
+    Thread.sleep(10);
+
+    // Only the whole blocks within the range are discarded
+    fdbArray.trim(100, 3000).get();
+    byte[] read = new byte[4096];
+    fdbArray.read(read, 0).get();
+    for (int i = 0; i < read.length; i++) {
+      assertEquals("Failed: " + i, i >= 512 && i < 3072 ? 0 : 1, read[i]);
+    }
+
+    // The snapshot still sees the data from before the trim
+    snapshot.read(read, 0).get();
+    assertArrayEquals(bytes, read);
+    snapshot.release();
+
+    // With nothing retaining them the versions are cleared outright
+    fdbArray.trim(0, 4096).get();
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(new byte[4096], read);
+  }
+
+  @Test
+  public void testWriteZeroes() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[8192];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+    FDBArray snapshot = fdbArray.snapshot();
+    Thread.sleep(10);
+
+    // Partial blocks are written, whole blocks become a zeroed range
+    fdbArray.writeZeroes(100, 8000).get();
+    byte[] read = new byte[8192];
+    fdbArray.read(read, 0).get();
+    for (int i = 0; i < read.length; i++) {
+      assertEquals("Failed: " + i, i >= 100 && i < 8100 ? 0 : 1, read[i]);
+    }
+
+    // Writes after the zeroing show through again
+    byte[] after = new byte[1000];
+    Arrays.fill(after, (byte) 2);
+    Thread.sleep(10);
+    fdbArray.write(after, 1000).get();
+    fdbArray.read(read, 0).get();
+    for (int i = 1000; i < 2000; i++) {
+      assertEquals("Failed: " + i, 2, read[i]);
+    }
+
+    snapshot.read(read, 0).get();
+    assertArrayEquals(bytes, read);
+    snapshot.release();
+  }
+
+  @Test
+  public void testOverlappingZeroes() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[8192];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+    FDBArray before = fdbArray.snapshot();
+
+    fdbArray.writeZeroes(2 * 512, 8 * 512).get();
+    byte[] two = new byte[512];
+    Arrays.fill(two, (byte) 2);
+    fdbArray.write(two, 5 * 512).get();
+    FDBArray between = fdbArray.snapshot();
+
+    // Ranges are split where they overlap, the pieces only the latest data reads are superseded
+    fdbArray.writeZeroes(6 * 512, 8 * 512).get();
+    fdbArray.writeZeroes(0, 4 * 512).get();
+
+    byte[] read = new byte[8192];
+    fdbArray.read(read, 0).get();
+    for (int i = 0; i < read.length; i++) {
+      int block = i / 512;
+      assertEquals("Failed: " + i, block == 4 || block >= 14 ? 1 : block == 5 ? 2 : 0, read[i]);
+    }
+    between.read(read, 0).get();
+    for (int i = 0; i < read.length; i++) {
+      int block = i / 512;
+      assertEquals("Failed: " + i, block < 2 || block >= 10 ? 1 : block == 5 ? 2 : 0, read[i]);
+    }
+    before.read(read, 0).get();
+    assertArrayEquals(bytes, read);
+    before.release();
+    between.release();
+  }
+
+  @Test
+  public void testWriteZeroesNoHole() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[2048];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+
+    // Without a snapshot to keep them the zeroed blocks are deallocated unless asked not to
+    fdbArray.writeZeroes(0, 1024).get();
+    fdbArray.writeZeroes(1024, 1024, true).get();
+    byte[] read = new byte[2048];
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(new byte[2048], read);
+    assertEquals(2, fdbArray.allocated().get().getCardinality());
+    assertTrue(fdbArray.allocated().get().contains(2));
+  }
+
+  @Test
+  public void testCompact() throws ExecutionException, InterruptedException {
+    byte[][] versions = new byte[3][512];
+    for (int i = 0; i < versions.length; i++) {
+      Arrays.fill(versions[i], (byte) (i + 1));
+    }
+    fdbArray.write(versions[0], 0).get();
+    Thread.sleep(10);
+    FDBArray snapshot = fdbArray.snapshot();
+    Thread.sleep(10);
+    fdbArray.write(versions[1], 0).get();
+    Thread.sleep(10);
+    fdbArray.write(versions[2], 0).get();
+
+    // Only the version in between the snapshot and the latest can go
+    assertEquals(1, compact());
+    byte[] read = new byte[512];
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(versions[2], read);
+    snapshot.read(read, 0).get();
+    assertArrayEquals(versions[0], read);
+
+    snapshot.release();
+    assertEquals(1, compact());
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(versions[2], read);
+  }
+
+  @Test
+  public void testDeltaWrites() throws ExecutionException, InterruptedException {
+    byte[] block = new byte[512];
+    Arrays.fill(block, (byte) 1);
+    fdbArray.write(block, 0).get();
+    fdbArray.setDeltaWrites(true);
+    try {
+      byte[] delta = new byte[10];
+      Arrays.fill(delta, (byte) 2);
+      fdbArray.write(delta, 100).get();
+      fdbArray.write(delta, 105).get();
+      System.arraycopy(delta, 0, block, 100, 10);
+      System.arraycopy(delta, 0, block, 105, 10);
+      byte[] read = new byte[512];
+      fdbArray.read(read, 0).get();
+      assertArrayEquals(block, read);
+
+      // Folded into the block and deleted since nothing else reads them
+      FDBArray.Compaction fold = fdbArray.fold(10).get();
+      assertEquals(2, fold.deleted);
+      fdbArray.read(read, 0).get();
+      assertArrayEquals(block, read);
+    } finally {
+      fdbArray.setDeltaWrites(false);
+    }
+  }
+
+  @Test
+  public void testCodecs() throws ExecutionException, InterruptedException {
+    byte[] text = new byte[512 * 4];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + i % 7);
+    }
+    byte[] random = new byte[512];
+    new Random(1337).nextBytes(random);
+    try {
+      // Blocks written with each codec are still read after switching
+      fdbArray.setCodec(Codec.LZ4);
+      fdbArray.write(text, 0).get();
+      fdbArray.setCodec(Codec.DEFLATE);
+      fdbArray.write(text, text.length).get();
+      fdbArray.write(random, text.length * 2).get();
+      byte[] read = new byte[text.length];
+      fdbArray.read(read, 0).get();
+      assertArrayEquals(text, read);
+      fdbArray.read(read, text.length).get();
+      assertArrayEquals(text, read);
+      byte[] readRandom = new byte[512];
+      fdbArray.read(readRandom, text.length * 2).get();
+      assertArrayEquals(random, readRandom);
+      assertTrue(fdbArray.storedUsage().get() < fdbArray.usage().get());
+    } finally {
+      fdbArray.setCodec(Codec.NONE);
+    }
+  }
+
+  @Test
+  public void testUsage() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[1024];
+    Arrays.fill(bytes, (byte) 1);
+    // Blocks in different chunks of the used block map, one of them written twice
+    fdbArray.write(bytes, 0).get();
+    fdbArray.write(bytes, 512L * 100_000).get();
+    fdbArray.write(bytes, 512).get();
+    assertEquals(512 * 5, fdbArray.usage().get().longValue());
+    fdbArray.trim(0, 1024).get();
+    assertEquals(512 * 3, fdbArray.usage().get().longValue());
+    assertEquals(3, fdbArray.allocated().get().getCardinality());
+  }
+
+  @Test
+  public void testZeroBlocks() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[2048];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+    FDBArray snapshot = fdbArray.snapshot();
+    // A snapshot can still read the blocks so they are replaced by tombstones
+    fdbArray.write(new byte[512], 0).get();
+    assertEquals(2048, fdbArray.usage().get().longValue());
+    snapshot.release();
+    // Nothing else can so they are dropped and no longer used
+    fdbArray.write(new byte[1024], 512).get();
+    assertEquals(1024, fdbArray.usage().get().longValue());
+    byte[] read = new byte[2048];
+    fdbArray.read(read, 0).get();
+    for (int i = 0; i < read.length; i++) {
+      assertEquals("Failed: " + i, i >= 1536 ? 1 : 0, read[i]);
+    }
+  }
+
+  @Test
+  public void testDedup() throws ExecutionException, InterruptedException {
+    Database db = FDB.instance().open();
+    FDBArray first = FDBArray.create(db, "testDedupArray", 1024, 512);
+    FDBArray second = FDBArray.create(db, "testDedupCopy", 1024, 512);
+    try {
+      first.setDedup(true);
+      second.setDedup(true);
+      byte[] bytes = new byte[4096];
+      Arrays.fill(bytes, (byte) 3);
+      first.write(bytes, 0).get();
+      second.write(bytes, 1024).get();
+      // Overwritten content is released but the other array still points at it
+      first.write(new byte[4096], 0).get();
+      int deleted = 0;
+      FDBArray.Compaction compaction;
+      do {
+        compaction = first.compact(100).get();
+        deleted += compaction.deleted;
+      } while (!compaction.done);
+      assertEquals(4, deleted);
+      do {
+        compaction = ContentStore.open(db).collect(100).get();
+      } while (!compaction.done);
+      byte[] read = new byte[4096];
+      second.read(read, 1024).get();
+      assertArrayEquals(bytes, read);
+      first.read(read, 0).get();
+      assertArrayEquals(new byte[4096], read);
+    } finally {
+      first.delete();
+      second.delete();
+    }
+  }
+
+  @Test
+  public void testNamedSnapshots() throws ExecutionException, InterruptedException {
+    byte[] before = new byte[512];
+    Arrays.fill(before, (byte) 1);
+    fdbArray.write(before, 0).get();
+    Thread.sleep(10);
+    fdbArray.createSnapshot("before");
+    Thread.sleep(10);
+    byte[] after = new byte[512];
+    Arrays.fill(after, (byte) 2);
+    fdbArray.write(after, 0).get();
+    assertEquals(singleton("before"), fdbArray.listSnapshots().keySet());
+
+    // The snapshot keeps the version it reads
+    assertEquals(0, compact());
+    byte[] read = new byte[512];
+    fdbArray.openSnapshot("before").read(read, 0).get();
+    assertArrayEquals(before, read);
+
+    fdbArray.releaseSnapshot("before");
+    assertTrue(fdbArray.listSnapshots().isEmpty());
+    assertEquals(1, compact());
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(after, read);
+  }
+
+  private int compact() throws ExecutionException, InterruptedException {
+    return compact(fdbArray::compact);
+  }
+
+  private int compact(Function<Integer, CompletableFuture<FDBArray.Compaction>> step) throws ExecutionException, InterruptedException {
+    int deleted = 0;
+    FDBArray.Compaction compaction;
+    do {
+      compaction = step.apply(2).get();
+      deleted += compaction.deleted;
+    } while (!compaction.done);
+    return deleted;
+  }
+
+  @Test
+  public void testCompactZeros() throws ExecutionException, InterruptedException {
+    byte[] bytes = new byte[2048];
+    Arrays.fill(bytes, (byte) 1);
+    fdbArray.write(bytes, 0).get();
+    Thread.sleep(10);
+    FDBArray snapshot = fdbArray.snapshot();
+    Thread.sleep(10);
+    fdbArray.writeZeroes(0, 2048).get();
+    Thread.sleep(10);
+    fdbArray.writeZeroes(0, 2048).get();
+
+    // The second range covers the first, the versions they hide are still read by the snapshot
+    assertEquals(1, compact(fdbArray::compactZeros));
+    byte[] read = new byte[2048];
+    snapshot.read(read, 0).get();
+    assertArrayEquals(bytes, read);
+
+    // Once nothing reads before it the range goes along with the four versions it hides
+    snapshot.release();
+    assertEquals(5, compact(fdbArray::compactZeros));
+    fdbArray.read(read, 0).get();
+    assertArrayEquals(new byte[2048], read);
+  }
+
   @Test
   public void testParent() throws ExecutionException, InterruptedException {
     Random r = new Random(1337);
@@ -147,6 +476,111 @@ public class FDBArrayTest {
     }
   }
 
+  @Test
+  public void testGrandparent() throws ExecutionException, InterruptedException {
+    byte[] rootBytes = new byte[4096];
+    Arrays.fill(rootBytes, (byte) 1);
+    fdbArray.write(rootBytes, 0).get();
+    Thread.sleep(10);
+    FDBArray child = fdbArray.snapshot("testChildArray");
+    FDBArray grandchild = null;
+    try {
+      byte[] childBytes = new byte[1024];
+      Arrays.fill(childBytes, (byte) 2);
+      child.write(childBytes, 1024).get();
+      Thread.sleep(10);
+      grandchild = child.snapshot("testGrandchildArray");
+
+      // Written after the clones were made so neither may see it
+      Thread.sleep(10);
+      fdbArray.write(new byte[4096], 0).get();
+
+      byte[] read = new byte[4096];
+      grandchild.read(read, 0).get();
+      for (int i = 0; i < read.length; i++) {
+        assertEquals("Failed: " + i, i >= 1024 && i < 2048 ? 2 : 1, read[i]);
+      }
+    } finally {
+      if (grandchild != null) grandchild.delete();
+      child.delete();
+    }
+  }
+
+  @Test
+  public void testCloneOfTrimmedClone() throws ExecutionException, InterruptedException {
+    byte[] rootBytes = new byte[2048];
+    Arrays.fill(rootBytes, (byte) 1);
+    fdbArray.write(rootBytes, 0).get();
+    Thread.sleep(10);
+    FDBArray child = fdbArray.snapshot("testChildArray");
+    FDBArray grandchild = null;
+    try {
+      // The child never wrote these blocks, its tombstones hide the root's
+      child.trim(512, 1024).get();
+      Thread.sleep(10);
+      grandchild = child.snapshot("testGrandchildArray");
+
+      byte[] read = new byte[2048];
+      grandchild.read(read, 0).get();
+      for (int i = 0; i < read.length; i++) {
+        assertEquals("Failed: " + i, i >= 512 && i < 1536 ? 0 : 1, read[i]);
+      }
+    } finally {
+      if (grandchild != null) grandchild.delete();
+      child.delete();
+    }
+  }
+
+  @Test
+  public void testCloneOfZeroedClone() throws ExecutionException, InterruptedException {
+    byte[] rootBytes = new byte[2048];
+    Arrays.fill(rootBytes, (byte) 1);
+    fdbArray.write(rootBytes, 0).get();
+    Thread.sleep(10);
+    FDBArray child = fdbArray.snapshot("testChildArray");
+    FDBArray grandchild = null;
+    try {
+      // The child never wrote these blocks, its zeroed range hides the root's
+      child.writeZeroes(512, 1024).get();
+      Thread.sleep(10);
+      grandchild = child.snapshot("testGrandchildArray");
+
+      byte[] read = new byte[2048];
+      grandchild.read(read, 0).get();
+      for (int i = 0; i < read.length; i++) {
+        assertEquals("Failed: " + i, i >= 512 && i < 1536 ? 0 : 1, read[i]);
+      }
+    } finally {
+      if (grandchild != null) grandchild.delete();
+      child.delete();
+    }
+  }
+
+  @Test
+  public void testFlatten() throws ExecutionException, InterruptedException {
+    byte[] parentBytes = new byte[4096];
+    Arrays.fill(parentBytes, (byte) 1);
+    fdbArray.write(parentBytes, 0).get();
+    Thread.sleep(10);
+    FDBArray child = fdbArray.snapshot("testFlattenArray");
+    try {
+      byte[] childBytes = new byte[1024];
+      Arrays.fill(childBytes, (byte) 2);
+      child.write(childBytes, 1024).get();
+      child.flatten(Integer.MAX_VALUE);
+
+      // Once detached the parent no longer shows through
+      fdbArray.clear();
+      byte[] read = new byte[4096];
+      FDBArray.open(FDB.instance().open(), "testFlattenArray").read(read, 0).get();
+      for (int i = 0; i < read.length; i++) {
+        assertEquals("Failed: " + i, i >= 1024 && i < 2048 ? 2 : 1, read[i]);
+      }
+    } finally {
+      child.delete();
+    }
+  }
+
   @Test
   @Ignore
   public void testRandomReadWrite() throws ExecutionException, InterruptedException {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Sam Pullara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nbdfdb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WriteBackTest {
+
+  private final Metrics metrics = Metrics.export("writeBackTest");
+
+  private WriteBack writeBack(long limit) {
+    return new WriteBack(() -> limit, metrics, (offset, length) -> {
+    });
+  }
+
+  @Test
+  public void testAcknowledgedBeforeDurable() {
+    WriteBack writeBack = writeBack(1024);
+    CompletableFuture<Void> commit = new CompletableFuture<>();
+    assertTrue(writeBack.submit(0, 512, new byte[512], () -> commit).isDone());
+    CompletableFuture<Void> flush = writeBack.flush();
+    assertFalse(flush.isDone());
+    commit.complete(null);
+    assertTrue(flush.isDone());
+    assertFalse(flush.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testWriteThroughOverLimit() {
+    WriteBack writeBack = writeBack(1024);
+    CompletableFuture<Void> first = new CompletableFuture<>();
+    CompletableFuture<Void> second = new CompletableFuture<>();
+    assertTrue(writeBack.submit(0, 1024, new byte[1024], () -> first).isDone());
+    CompletableFuture<Void> acknowledged = writeBack.submit(4096, 512, new byte[512], () -> second);
+    assertFalse(acknowledged.isDone());
+    second.complete(null);
+    assertTrue(acknowledged.isDone());
+    first.complete(null);
+  }
+
+  @Test
+  public void testFua() {
+    WriteBack writeBack = writeBack(1024);
+    CompletableFuture<Void> commit = new CompletableFuture<>();
+    // FUA writes are submitted without their buffer
+    CompletableFuture<Void> acknowledged = writeBack.submit(0, 512, null, () -> commit);
+    assertFalse(acknowledged.isDone());
+    commit.complete(null);
+    assertTrue(acknowledged.isDone());
+  }
+
+  @Test
+  public void testReadOverlay() {
+    WriteBack writeBack = writeBack(1024);
+    CompletableFuture<Void> commit = new CompletableFuture<>();
+    byte[] data = new byte[256];
+    Arrays.fill(data, (byte) 1);
+    writeBack.submit(128, 256, data, () -> commit);
+
+    byte[] read = new byte[512];
+    writeBack.read(read, 0, () -> {
+      Arrays.fill(read, (byte) 2);
+      return CompletableFuture.completedFuture(null);
+    });
+    for (int i = 0; i < read.length; i++) {
+      assertEquals(i >= 128 && i < 384 ? 1 : 2, read[i]);
+    }
+
+    // Once committed reads come from storage alone
+    commit.complete(null);
+    writeBack.read(read, 0, () -> {
+      Arrays.fill(read, (byte) 3);
+      return CompletableFuture.completedFuture(null);
+    });
+    for (byte b : read) {
+      assertEquals(3, b);
+    }
+  }
+
+  @Test
+  public void testOverlappingWritesInOrder() {
+    WriteBack writeBack = writeBack(4096);
+    CompletableFuture<Void> first = new CompletableFuture<>();
+    AtomicBoolean issued = new AtomicBoolean();
+    writeBack.submit(0, 512, new byte[512], () -> first);
+    writeBack.submit(256, 512, new byte[512], () -> {
+      issued.set(true);
+      return CompletableFuture.completedFuture(null);
+    });
+    assertFalse(issued.get());
+    first.complete(null);
+    assertTrue(issued.get());
+  }
+
+  /**
+   * A later write committing first mustn't complete a flush an earlier one is still holding up.
+   */
+  @Test
+  public void testFlushWaitsForEarlierWrites() {
+    WriteBack writeBack = writeBack(4096);
+    CompletableFuture<Void> slow = new CompletableFuture<>();
+    writeBack.submit(0, 512, new byte[512], () -> slow);
+    CompletableFuture<Void> flush = writeBack.flush();
+    writeBack.submit(1024, 512, new byte[512], () -> CompletableFuture.completedFuture(null));
+    writeBack.submit(2048, 512, new byte[512], () -> CompletableFuture.completedFuture(null));
+    assertFalse(flush.isDone());
+    slow.complete(null);
+    assertTrue(flush.isDone());
+
+    // Writes issued after a flush don't hold it up
+    CompletableFuture<Void> later = new CompletableFuture<>();
+    CompletableFuture<Void> earlier = writeBack.flush();
+    writeBack.submit(0, 512, new byte[512], () -> later);
+    assertTrue(earlier.isDone());
+    later.complete(null);
+  }
+
+  @Test
+  public void testFlushReportsWriteBackFailure() {
+    WriteBack writeBack = writeBack(1024);
+    CompletableFuture<Void> commit = new CompletableFuture<>();
+    assertTrue(writeBack.submit(0, 512, new byte[512], () -> commit).isDone());
+    commit.completeExceptionally(new IllegalStateException("failed"));
+    assertTrue(writeBack.flush().isCompletedExceptionally());
+    // Reported once
+    assertFalse(writeBack.flush().isCompletedExceptionally());
+  }
+}